@@ -0,0 +1,64 @@
+package me.textmate.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import me.textmate.grammar.StackElement;
+import me.textmate.main.IGrammar;
+
+/**
+ * Cold tokenization: every invocation gets a freshly loaded grammar, so the measured time includes
+ * building the rules and compiling the regular expressions they need.
+ *  - `firstLine` tokenizes only the first line of the corpus (root rule compilation)
+ *  - `sample` tokenizes the whole bundled sample, compiling every rule it reaches
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+@State(Scope.Thread)
+public class ColdStartBenchmark {
+
+  @Param({ "javascript", "clojure" })
+  public String grammar;
+
+  private IGrammar _grammar;
+  private String[] _lines;
+
+  @Setup(Level.Trial)
+  public void setupLines() throws Exception {
+    _lines = Corpus.sampleLines(grammar).toArray(new String[0]);
+  }
+
+  @Setup(Level.Invocation)
+  public void loadGrammar() throws Exception {
+    _grammar = Corpus.loadGrammar(grammar);
+  }
+
+  @Benchmark
+  public StackElement firstLine() {
+    return _grammar.tokenizeLine2(_lines[0], null).ruleStack;
+  }
+
+  @Benchmark
+  public StackElement sample() {
+    StackElement state = null;
+    for (String line : _lines) {
+      state = _grammar.tokenizeLine2(line, state).ruleStack;
+    }
+    return state;
+  }
+}
@@ -0,0 +1,203 @@
+package me.textmate.benchmarks;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import me.textmate.main.IGrammar;
+import me.textmate.main.Registry;
+
+/**
+ * Grammars and inputs shared by all benchmarks.
+ *
+ * The bundled grammars and samples are read from the `test-cases` directory, which is looked up in
+ * the working directory and its parent (so the benchmarks run both from the repository root and from
+ * `benchmarks/`). Set the `textmate.testCases` system property to point somewhere else.
+ */
+public class Corpus {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  public static String testCasesDir() {
+    String dir = System.getProperty("textmate.testCases");
+    if (dir != null) {
+      return dir;
+    }
+    if (new File("test-cases").isDirectory()) {
+      return "test-cases";
+    }
+    return "../test-cases";
+  }
+
+  public static String grammarPath(String grammar) {
+    if (grammar.equals("javascript")) {
+      return testCasesDir() + "/JavaScript.tmLanguage.json";
+    }
+    if (grammar.equals("clojure")) {
+      return testCasesDir() + "/clojure.tmLanguage.json";
+    }
+    throw new IllegalArgumentException("Unknown grammar " + grammar);
+  }
+
+  public static IGrammar loadGrammar(String grammar) throws Exception {
+    return new Registry().loadGrammarFromPathSync(grammarPath(grammar));
+  }
+
+  /**
+   * Returns `lineCount` lines of input for `grammar`.
+   *  - `sample` repeats the bundled sample file of the language
+   *  - `synthetic` generates pseudo-random source code (with some non-ASCII text)
+   */
+  public static List<String> lines(String grammar, String corpus, int lineCount) throws Exception {
+    List<String> source;
+    if (corpus.equals("sample")) {
+      source = sampleLines(grammar);
+    } else if (corpus.equals("synthetic")) {
+      source = grammar.equals("clojure") ? syntheticClojure(lineCount) : syntheticJavaScript(lineCount);
+    } else {
+      throw new IllegalArgumentException("Unknown corpus " + corpus);
+    }
+
+    List<String> result = new ArrayList<String>(lineCount);
+    while (result.size() < lineCount) {
+      result.addAll(source.subList(0, Math.min(source.size(), lineCount - result.size())));
+    }
+    return result;
+  }
+
+  public static long byteCount(List<String> lines) {
+    long bytes = 0;
+    for (String line : lines) {
+      bytes += line.getBytes(UTF_8).length + 1;
+    }
+    return bytes;
+  }
+
+  public static List<String> sampleLines(String grammar) throws Exception {
+    String file = grammar.equals("clojure") ? "client.cljs" : "sample.js";
+    return Files.readAllLines(Paths.get(testCasesDir(), file), UTF_8);
+  }
+
+  private static final String[] IDENTIFIERS = { "foo", "bar", "baz", "buffer", "client", "value", "x", "index",
+      "result", "options", "callback", "données", "名前" };
+  private static final String[] TEXTS = { "hello", "nihao", "some text", "über", "日本語のテキスト", "emoji 😀 here",
+      "path/to/file" };
+
+  private static List<String> syntheticJavaScript(int lineCount) {
+    Random random = new Random(42);
+    List<String> lines = new ArrayList<String>(lineCount);
+    int depth = 0;
+    while (lines.size() < lineCount) {
+      String indent = indent(depth);
+      String a = pick(random, IDENTIFIERS);
+      String b = pick(random, IDENTIFIERS);
+      String text = pick(random, TEXTS);
+      switch (random.nextInt(14)) {
+      case 0:
+        lines.add(indent + "function " + a + "(" + b + ", opts = {}) {");
+        depth++;
+        break;
+      case 1:
+        if (depth > 0) {
+          depth--;
+        }
+        lines.add(indent(depth) + "}");
+        break;
+      case 2:
+        lines.add(indent + "const " + a + " = \"" + text + "\" + '" + b + "';");
+        break;
+      case 3:
+        lines.add(indent + "let " + a + " = `" + text + " ${" + b + " + " + random.nextInt(1000) + "}`;");
+        break;
+      case 4:
+        lines.add(indent + "// " + text + " " + a + " " + b);
+        break;
+      case 5:
+        lines.add(indent + "/* " + text + " */ " + a + "." + b + "(" + random.nextInt(100) + ", 0x1F, 1e10);");
+        break;
+      case 6:
+        lines.add(indent + "if (" + a + " === " + b + " && !" + a + " || " + b + " >= 3.14) {");
+        depth++;
+        break;
+      case 7:
+        lines.add(indent + "return " + a + ".map((" + b + ") => " + b + " * 2).filter(Boolean);");
+        break;
+      case 8:
+        lines.add(indent + "const re = /" + a + "[a-z]+\\d*/gi.exec(" + b + ");");
+        break;
+      case 9:
+        lines.add(indent + "class " + capitalize(a) + " extends " + capitalize(b) + " { constructor() { super(); } }");
+        break;
+      case 10:
+        lines.add(indent + "import { " + a + ", " + b + " as alias } from \"./" + a + "\";");
+        break;
+      case 11:
+        lines.add(indent + "const el = <div className=\"" + a + "\" onClick={() => " + b + "()}>" + text + "</div>;");
+        break;
+      case 12:
+        lines.add(indent + "for (let i = 0; i < " + a + ".length; i++) { " + b + " += " + a + "[i]; }");
+        break;
+      default:
+        lines.add("");
+        break;
+      }
+    }
+    return lines;
+  }
+
+  private static List<String> syntheticClojure(int lineCount) {
+    Random random = new Random(42);
+    List<String> lines = new ArrayList<String>(lineCount);
+    while (lines.size() < lineCount) {
+      String a = pick(random, IDENTIFIERS);
+      String b = pick(random, IDENTIFIERS);
+      String text = pick(random, TEXTS);
+      switch (random.nextInt(8)) {
+      case 0:
+        lines.add("(defn " + a + "-" + b + " [" + a + " " + b + "]");
+        break;
+      case 1:
+        lines.add("  (let [" + a + " (get " + b + " :" + a + ")]");
+        break;
+      case 2:
+        lines.add("    (println \"" + text + "\" " + a + " " + random.nextInt(1000) + ")))");
+        break;
+      case 3:
+        lines.add("; " + text + " " + a);
+        break;
+      case 4:
+        lines.add("(def ^:private " + a + " {:id " + random.nextInt(100) + " :name \"" + text + "\" :tags #{:a :b}})");
+        break;
+      case 5:
+        lines.add("  (-> " + a + " :" + b + " (swap! update-in [:" + a + "] inc) (.get js/window \"" + b + "\"))");
+        break;
+      case 6:
+        lines.add("(ns " + a + "." + b + " (:require [" + a + ".core :refer [" + b + "]]))");
+        break;
+      default:
+        lines.add("");
+        break;
+      }
+    }
+    return lines;
+  }
+
+  private static String pick(Random random, String[] values) {
+    return values[random.nextInt(values.length)];
+  }
+
+  private static String indent(int depth) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < depth; i++) {
+      sb.append("  ");
+    }
+    return sb.toString();
+  }
+
+  private static String capitalize(String s) {
+    return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+  }
+}
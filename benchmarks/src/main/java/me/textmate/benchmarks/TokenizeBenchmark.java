@@ -0,0 +1,127 @@
+package me.textmate.benchmarks;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import me.textmate.grammar.StackElement;
+import me.textmate.main.IGrammar;
+import me.textmate.main.ITokenizeDocumentResult;
+import me.textmate.main.ITokenizeLineResult;
+import me.textmate.main.ITokenizeLineResult2;
+import me.textmate.main.TokenBuffer;
+
+/**
+ * Warm, steady-state throughput of `tokenizeLine` and `tokenizeLine2`, and of `tokenizeLine2` into a
+ * reused {@link TokenBuffer}, and of `tokenizeDocument`.
+ *
+ * Rules are compiled during setup, so only tokenization is measured. One operation tokenizes the
+ * whole corpus line by line; the `lines` and `bytes` counters report lines/sec and bytes/sec.
+ * Run with `-prof gc` to get the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenizeBenchmark {
+
+  @Param({ "javascript", "clojure" })
+  public String grammar;
+
+  @Param({ "sample", "synthetic" })
+  public String corpus;
+
+  @Param({ "10000" })
+  public int lineCount;
+
+  private IGrammar _grammar;
+  private String[] _lines;
+  private long _bytes;
+  private final TokenBuffer _tokens = new TokenBuffer();
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Counters {
+    public long lines;
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      lines = 0;
+      bytes = 0;
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    List<String> lines = Corpus.lines(grammar, corpus, lineCount);
+    _lines = lines.toArray(new String[0]);
+    _bytes = Corpus.byteCount(lines);
+    _grammar = Corpus.loadGrammar(grammar);
+
+    // compile all the rules the corpus needs
+    tokenizeLine2(null);
+  }
+
+  @Benchmark
+  public StackElement tokenizeLine(Counters counters) {
+    StackElement state = null;
+    for (String line : _lines) {
+      ITokenizeLineResult r = _grammar.tokenizeLine(line, state);
+      state = r.ruleStack;
+    }
+    count(counters);
+    return state;
+  }
+
+  @Benchmark
+  public StackElement tokenizeLine2(Counters counters) {
+    StackElement state = null;
+    for (String line : _lines) {
+      ITokenizeLineResult2 r = _grammar.tokenizeLine2(line, state);
+      state = r.ruleStack;
+    }
+    count(counters);
+    return state;
+  }
+
+  @Benchmark
+  public StackElement tokenizeLine2Buffer(Counters counters) {
+    StackElement state = null;
+    for (String line : _lines) {
+      state = _grammar.tokenizeLine2(line, state, _tokens);
+    }
+    count(counters);
+    return state;
+  }
+
+  @Benchmark
+  public ITokenizeDocumentResult tokenizeDocument(Counters counters) {
+    ITokenizeDocumentResult result = _grammar.tokenizeDocument(Arrays.asList(_lines).iterator());
+    count(counters);
+    return result;
+  }
+
+  private void count(Counters counters) {
+    if (counters != null) {
+      counters.lines += _lines.length;
+      counters.bytes += _bytes;
+    }
+  }
+}
@@ -0,0 +1,758 @@
+package me.oniguruma;
+
+/**
+ * A cheap test that tells where a regular expression can start matching in a string.
+ * 
+ * The prefilter is derived from the source of the regular expression: the set of characters the
+ * first consumed character of a match can be (non-ASCII characters are not told apart), and the
+ * literal text every match starts with, if any. {@link #find(OnigString, int)} returns the first
+ * position where the regular expression could match, so {@link OnigSearcher} can skip it when that
+ * position is beyond the best match found so far, or when there is none.
+ * 
+ * Regular expressions that can match the empty string have no prefilter, and constructs the
+ * analysis does not know about make it give up. So do the ones it could get wrong: ignoring case,
+ * `\A` and `\G`, back references, look-behinds and alternations with an empty branch.
+ * 
+ * Instances are immutable, the last result of {@link #find(OnigString, int)} is kept by the string.
+ */
+public class OnigPrefilter {
+
+	/**
+	 * The ASCII characters a match can start with, as two 64 bit masks.
+	 */
+	private final long low;
+	private final long high;
+	/**
+	 * True if a match can start with a non-ASCII character.
+	 */
+	private final boolean nonAscii;
+	/**
+	 * The text every match starts with, or null.
+	 */
+	private final String prefix;
+	/**
+	 * The interned source of the regular expression.
+	 */
+	private final String source;
+
+	private OnigPrefilter(long low, long high, boolean nonAscii, String prefix, String source) {
+		this.low = low;
+		this.high = high;
+		this.nonAscii = nonAscii;
+		this.prefix = prefix;
+		this.source = source.intern();
+	}
+
+	/**
+	 * Returns the prefilter of the regular expression `source`, or null if it cannot have one.
+	 */
+	public static OnigPrefilter create(String source) {
+		Node node;
+		try {
+			node = new Parser(source).parse();
+		} catch (UnsupportedSyntaxException e) {
+			return null;
+		}
+		if (node.nullable || node.first.any) {
+			return null;
+		}
+		String prefix = node.prefix.length() > 1 ? node.prefix : null;
+		return new OnigPrefilter(node.first.low, node.first.high, node.first.nonAscii, prefix, source);
+	}
+
+	/**
+	 * Returns the first UTF-16 offset at or after `position` where a match can start, or -1 if the
+	 * regular expression cannot match in the rest of `str`.
+	 */
+	public int find(OnigString str, int position) {
+		OnigString.SearchState state = str.getSearchState(source);
+		if (state.prefilterPosition != -1 && state.prefilterPosition <= position
+				&& (state.prefilterResult == -1 || state.prefilterResult >= position)) {
+			return state.prefilterResult;
+		}
+		state.prefilterPosition = position;
+		state.prefilterResult = find(str.getString(), position);
+		return state.prefilterResult;
+	}
+
+	private int find(String str, int position) {
+		if (prefix != null) {
+			return str.indexOf(prefix, position);
+		}
+		int length = str.length();
+		for (int i = position; i < length; i++) {
+			char ch = str.charAt(i);
+			if (ch < 64) {
+				if ((low & (1L << ch)) != 0) {
+					return i;
+				}
+			} else if (ch < 128) {
+				if ((high & (1L << (ch - 64))) != 0) {
+					return i;
+				}
+			} else if (nonAscii) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * A set of characters, with all the non-ASCII characters in one bucket.
+	 */
+	private static class CharSet {
+		long low;
+		long high;
+		boolean nonAscii;
+		boolean any;
+
+		void add(int ch) {
+			if (ch < 64) {
+				low |= 1L << ch;
+			} else if (ch < 128) {
+				high |= 1L << (ch - 64);
+			} else {
+				nonAscii = true;
+			}
+		}
+
+		void addRange(int from, int to) {
+			for (int ch = from; ch <= to && ch < 128; ch++) {
+				add(ch);
+			}
+			if (to >= 128) {
+				nonAscii = true;
+			}
+		}
+
+		void addAll(String chars) {
+			for (int i = 0; i < chars.length(); i++) {
+				add(chars.charAt(i));
+			}
+		}
+
+		void addAll(CharSet other) {
+			low |= other.low;
+			high |= other.high;
+			nonAscii |= other.nonAscii;
+			any |= other.any;
+		}
+	}
+
+	/**
+	 * What the prefilter needs to know about a part of a regular expression.
+	 */
+	private static class Node {
+		/**
+		 * The characters the part can start with.
+		 */
+		final CharSet first = new CharSet();
+		/**
+		 * True if the part can match the empty string.
+		 */
+		boolean nullable;
+		/**
+		 * The text every match of the part starts with.
+		 */
+		String prefix = "";
+		/**
+		 * True if the part always matches exactly `prefix`.
+		 */
+		boolean exact;
+
+		static Node empty() {
+			Node node = new Node();
+			node.nullable = true;
+			node.exact = true;
+			return node;
+		}
+
+		static Node anyChar() {
+			Node node = new Node();
+			node.first.any = true;
+			return node;
+		}
+
+		static Node literal(char ch) {
+			Node node = new Node();
+			node.first.add(ch);
+			node.prefix = String.valueOf(ch);
+			node.exact = true;
+			return node;
+		}
+
+		static Node of(CharSet set) {
+			Node node = new Node();
+			node.first.addAll(set);
+			return node;
+		}
+
+		Node then(Node next) {
+			Node node = new Node();
+			node.first.addAll(first);
+			if (nullable) {
+				node.first.addAll(next.first);
+			}
+			node.nullable = nullable && next.nullable;
+			if (exact) {
+				node.prefix = prefix + next.prefix;
+				node.exact = next.exact;
+			} else {
+				node.prefix = prefix;
+			}
+			return node;
+		}
+
+		Node or(Node other) {
+			Node node = new Node();
+			node.first.addAll(first);
+			node.first.addAll(other.first);
+			node.nullable = nullable || other.nullable;
+			int length = 0;
+			while (length < prefix.length() && length < other.prefix.length()
+					&& prefix.charAt(length) == other.prefix.charAt(length)) {
+				length++;
+			}
+			node.prefix = prefix.substring(0, length);
+			node.exact = exact && other.exact && prefix.equals(other.prefix);
+			return node;
+		}
+
+		Node repeat(int min, int max) {
+			if (min == 1 && max == 1) {
+				return this;
+			}
+			Node node = new Node();
+			node.first.addAll(first);
+			node.nullable = nullable || min == 0;
+			node.prefix = min == 0 ? "" : prefix;
+			return node;
+		}
+	}
+
+	/**
+	 * Thrown by {@link Parser} on a construct the analysis does not know about: the regular expression
+	 * gets no prefilter. It has no stack trace, it is not an error.
+	 */
+	private static class UnsupportedSyntaxException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		UnsupportedSyntaxException() {
+			super(null, null, false, false);
+		}
+	}
+
+	/**
+	 * A recursive descent parser for the Ruby syntax of Oniguruma, as used by TextMate grammars,
+	 * that only keeps what the prefilter needs. It throws {@link UnsupportedSyntaxException} on
+	 * anything it does not understand.
+	 */
+	private static class Parser {
+		private static final String DIGIT = "0123456789";
+		private static final String LOWER = "abcdefghijklmnopqrstuvwxyz";
+		private static final String UPPER = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+		private static final String WORD = DIGIT + LOWER + UPPER + "_";
+		private static final String SPACE = " \t\n\u000b\f\r";
+		private static final String XDIGIT = DIGIT + "abcdefABCDEF";
+		private static final String PUNCT = "!\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~";
+
+		private final String source;
+		private int pos;
+		private boolean extended;
+
+		Parser(String source) {
+			this.source = source;
+			this.pos = 0;
+		}
+
+		Node parse() throws UnsupportedSyntaxException {
+			Node node = parseAlternation();
+			if (pos < source.length()) {
+				throw new UnsupportedSyntaxException();
+			}
+			return node;
+		}
+
+		private boolean more() {
+			return pos < source.length();
+		}
+
+		private char peek() {
+			return source.charAt(pos);
+		}
+
+		private char next() throws UnsupportedSyntaxException {
+			if (!more()) {
+				throw new UnsupportedSyntaxException();
+			}
+			return source.charAt(pos++);
+		}
+
+		private boolean accept(String text) {
+			if (source.startsWith(text, pos)) {
+				pos += text.length();
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * An alternation with an empty branch (`a|`, `(|a)`) gives up.
+		 */
+		private Node parseAlternation() throws UnsupportedSyntaxException {
+			Node node = parseSequence();
+			if (!more() || peek() != '|') {
+				return node != null ? node : Node.empty();
+			}
+			while (more() && peek() == '|') {
+				pos++;
+				Node branch = parseSequence();
+				if (node == null || branch == null) {
+					throw new UnsupportedSyntaxException();
+				}
+				node = node.or(branch);
+			}
+			return node;
+		}
+
+		/**
+		 * Returns null if the sequence has no atom.
+		 */
+		private Node parseSequence() throws UnsupportedSyntaxException {
+			Node node = null;
+			skipExtended();
+			while (more() && peek() != '|' && peek() != ')') {
+				Node atom = parseAtom();
+				if (atom != null) {
+					atom = parseQuantifiers(atom);
+					node = node != null ? node.then(atom) : atom;
+				}
+				skipExtended();
+			}
+			return node;
+		}
+
+		private Node parseQuantifiers(Node atom) {
+			while (true) {
+				skipExtended();
+				if (!more()) {
+					break;
+				}
+				char ch = peek();
+				int min;
+				int max;
+				if (ch == '*') {
+					pos++;
+					min = 0;
+					max = -1;
+				} else if (ch == '+') {
+					pos++;
+					min = 1;
+					max = -1;
+				} else if (ch == '?') {
+					pos++;
+					min = 0;
+					max = 1;
+				} else if (ch == '{' && parseInterval()) {
+					min = intervalMin;
+					max = intervalMax;
+				} else {
+					break;
+				}
+				// lazy or possessive
+				if (more() && (peek() == '?' || peek() == '+')) {
+					pos++;
+				}
+				atom = atom.repeat(min, max);
+			}
+			return atom;
+		}
+
+		private int intervalMin;
+		private int intervalMax;
+
+		/**
+		 * Parses `{n}`, `{n,}`, `{,m}` or `{n,m}`. Anything else is a literal `{`.
+		 */
+		private boolean parseInterval() {
+			int end = source.indexOf('}', pos);
+			if (end == -1) {
+				return false;
+			}
+			String interval = source.substring(pos + 1, end);
+			int comma = interval.indexOf(',');
+			String low = comma == -1 ? interval : interval.substring(0, comma);
+			String high = comma == -1 ? interval : interval.substring(comma + 1);
+			if ((low.length() == 0 && high.length() == 0) || !isNumber(low) || !isNumber(high)) {
+				return false;
+			}
+			intervalMin = low.length() == 0 ? 0 : Integer.parseInt(low);
+			intervalMax = high.length() == 0 ? -1 : Integer.parseInt(high);
+			pos = end + 1;
+			return true;
+		}
+
+		private static boolean isNumber(String text) {
+			for (int i = 0; i < text.length(); i++) {
+				if (DIGIT.indexOf(text.charAt(i)) == -1) {
+					return false;
+				}
+			}
+			return text.length() < 6;
+		}
+
+		/**
+		 * Skips the whitespace and the comments of the extended syntax.
+		 */
+		private void skipExtended() {
+			while (extended && more()) {
+				char ch = peek();
+				if (ch == '#') {
+					while (more() && peek() != '\n') {
+						pos++;
+					}
+				} else if (SPACE.indexOf(ch) != -1) {
+					pos++;
+				} else {
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Returns null for the parts that match nothing: comments and option changes.
+		 */
+		private Node parseAtom() throws UnsupportedSyntaxException {
+			char ch = next();
+			switch (ch) {
+			case '(':
+				return parseGroup();
+			case '[':
+				return Node.of(parseClass());
+			case '\\':
+				return parseEscape();
+			case '.':
+				return Node.anyChar();
+			case '^':
+			case '$':
+				return Node.empty();
+			case '*':
+			case '+':
+			case '?':
+				throw new UnsupportedSyntaxException();
+			default:
+				return Node.literal(ch);
+			}
+		}
+
+
+		private Node parseGroup() throws UnsupportedSyntaxException {
+			boolean savedExtended = extended;
+			boolean lookAround = false;
+			if (accept("?")) {
+				if (accept("#")) {
+					while (next() != ')') {
+					}
+					return null;
+				}
+				if (accept(":") || accept(">")) {
+					// non capturing or atomic group
+				} else if (accept("=") || accept("!")) {
+					lookAround = true;
+				} else if (accept("<=") || accept("<!")) {
+					// a look-behind can look before the search position
+					throw new UnsupportedSyntaxException();
+				} else if (accept("<")) {
+					skipName('>');
+				} else if (accept("'")) {
+					skipName('\'');
+				} else {
+					parseOptions();
+					if (accept(")")) {
+						// the options apply to the rest of the enclosing group
+						return null;
+					}
+					if (!accept(":")) {
+						throw new UnsupportedSyntaxException();
+					}
+				}
+			}
+			Node node = parseAlternation();
+			if (!accept(")")) {
+				throw new UnsupportedSyntaxException();
+			}
+			extended = savedExtended;
+			return lookAround ? Node.empty() : node;
+		}
+
+		private void skipName(char end) throws UnsupportedSyntaxException {
+			while (next() != end) {
+			}
+		}
+
+		/**
+		 * Parses the `imx-imx` part of `(?imx-imx)` or `(?imx-imx:...)`. Ignoring case gives up: Unicode
+		 * case folding maps letters to non-ASCII and multi-character text (`ss` matches the sharp s).
+		 */
+		private void parseOptions() throws UnsupportedSyntaxException {
+			boolean on = true;
+			while (more()) {
+				char ch = peek();
+				if (ch == 'i') {
+					if (on) {
+						throw new UnsupportedSyntaxException();
+					}
+				} else if (ch == 'x') {
+					extended = on;
+				} else if (ch == '-') {
+					on = false;
+				} else if (ch != 'm') {
+					return;
+				}
+				pos++;
+			}
+		}
+
+		private Node parseEscape() throws UnsupportedSyntaxException {
+			char ch = next();
+			switch (ch) {
+			case 'b':
+			case 'B':
+			case 'z':
+			case 'Z':
+				return Node.empty();
+			case 'A':
+			case 'G':
+				// anchored at the search position: there is nothing to skip
+				throw new UnsupportedSyntaxException();
+			case '1':
+			case '2':
+			case '3':
+			case '4':
+			case '5':
+			case '6':
+			case '7':
+			case '8':
+			case '9':
+			case 'k':
+				// back references match text that depends on the match
+				throw new UnsupportedSyntaxException();
+			case 'p':
+			case 'P':
+				skipProperty();
+				return Node.anyChar();
+			}
+			CharSet set = parseClassEscape(ch);
+			if (set != null) {
+				return Node.of(set);
+			}
+			return Node.literal(parseCharEscape(ch));
+		}
+
+		private void skipProperty() throws UnsupportedSyntaxException {
+			if (accept("{")) {
+				skipName('}');
+			} else {
+				next();
+			}
+		}
+
+		/**
+		 * Returns the set of a `\d`-like escape, or null if `ch` is not one.
+		 */
+		private CharSet parseClassEscape(char ch) {
+			CharSet set = new CharSet();
+			switch (ch) {
+			case 'd':
+				set.addAll(DIGIT);
+				break;
+			case 'w':
+				set.addAll(WORD);
+				break;
+			case 's':
+				set.addAll(SPACE);
+				break;
+			case 'h':
+				set.addAll(XDIGIT);
+				break;
+			case 'D':
+			case 'W':
+			case 'S':
+			case 'H':
+				set.any = true;
+				return set;
+			default:
+				return null;
+			}
+			// the Unicode variants
+			set.nonAscii = true;
+			return set;
+		}
+
+		/**
+		 * Returns the character of an escape like `\n`, `\x41` or `\.`.
+		 */
+		private char parseCharEscape(char ch) throws UnsupportedSyntaxException {
+			switch (ch) {
+			case 'n':
+				return '\n';
+			case 't':
+				return '\t';
+			case 'r':
+				return '\r';
+			case 'f':
+				return '\f';
+			case 'v':
+				return '\u000b';
+			case 'e':
+				return '\u001b';
+			case 'a':
+				return '\u0007';
+			case 'x':
+				if (accept("{")) {
+					int end = source.indexOf('}', pos);
+					if (end == -1) {
+						throw new UnsupportedSyntaxException();
+					}
+					String hex = source.substring(pos, end);
+					pos = end + 1;
+					return parseCode(hex, 16);
+				}
+				return parseCode(digits("0123456789abcdefABCDEF", 2), 16);
+			case 'u':
+				return parseCode(digits("0123456789abcdefABCDEF", 4), 16);
+			case '0':
+				return parseCode("0" + digits("01234567", 2), 8);
+			}
+			if (Character.isLetterOrDigit(ch)) {
+				throw new UnsupportedSyntaxException();
+			}
+			return ch;
+		}
+
+		private String digits(String allowed, int max) {
+			int start = pos;
+			while (more() && pos - start < max && allowed.indexOf(peek()) != -1) {
+				pos++;
+			}
+			return source.substring(start, pos);
+		}
+
+		private static char parseCode(String digits, int radix) throws UnsupportedSyntaxException {
+			int code;
+			try {
+				code = Integer.parseInt(digits, radix);
+			} catch (NumberFormatException e) {
+				throw new UnsupportedSyntaxException();
+			}
+			if (code > 0xffff) {
+				throw new UnsupportedSyntaxException();
+			}
+			return (char) code;
+		}
+
+		/**
+		 * Parses a character class after its `[`. Nested classes and intersections are added to the
+		 * set, which only makes it larger.
+		 */
+		private CharSet parseClass() throws UnsupportedSyntaxException {
+			CharSet set = new CharSet();
+			boolean negated = accept("^");
+			boolean first = true;
+			while (true) {
+				char ch = next();
+				if (ch == ']' && !first) {
+					break;
+				}
+				first = false;
+				if (ch == '[') {
+					if (accept(":")) {
+						parsePosixBracket(set);
+					} else {
+						set.addAll(parseClass());
+					}
+					continue;
+				}
+				if (ch == '&' && accept("&")) {
+					continue;
+				}
+				int from;
+				if (ch == '\\') {
+					char escaped = next();
+					if (escaped == 'p' || escaped == 'P') {
+						skipProperty();
+						set.any = true;
+						continue;
+					}
+					CharSet escapedSet = parseClassEscape(escaped);
+					if (escapedSet != null) {
+						set.addAll(escapedSet);
+						continue;
+					}
+					from = escaped == 'b' ? '\b' : parseCharEscape(escaped);
+				} else {
+					from = ch;
+				}
+				int to = from;
+				if (more() && peek() == '-' && pos + 1 < source.length() && source.charAt(pos + 1) != ']') {
+					pos++;
+					char end = next();
+					if (end == '[') {
+						throw new UnsupportedSyntaxException();
+					}
+					to = end == '\\' ? parseCharEscape(next()) : end;
+					if (to < from) {
+						throw new UnsupportedSyntaxException();
+					}
+				}
+				set.addRange(from, to);
+			}
+			if (negated) {
+				set.any = true;
+			}
+			return set;
+		}
+
+		/**
+		 * Parses a POSIX bracket like `[:alpha:]` after its `[:`.
+		 */
+		private void parsePosixBracket(CharSet set) throws UnsupportedSyntaxException {
+			int end = source.indexOf(":]", pos);
+			if (end == -1) {
+				throw new UnsupportedSyntaxException();
+			}
+			String name = source.substring(pos, end);
+			pos = end + 2;
+			if (name.equals("alpha")) {
+				set.addAll(LOWER + UPPER);
+			} else if (name.equals("digit")) {
+				set.addAll(DIGIT);
+			} else if (name.equals("alnum")) {
+				set.addAll(DIGIT + LOWER + UPPER);
+			} else if (name.equals("upper")) {
+				set.addAll(UPPER);
+			} else if (name.equals("lower")) {
+				set.addAll(LOWER);
+			} else if (name.equals("space")) {
+				set.addAll(SPACE);
+			} else if (name.equals("blank")) {
+				set.addAll(" \t");
+			} else if (name.equals("punct")) {
+				set.addAll(PUNCT);
+			} else if (name.equals("xdigit")) {
+				set.addAll(XDIGIT);
+			} else if (name.equals("word")) {
+				set.addAll(WORD);
+			} else if (name.equals("cntrl")) {
+				set.addRange(0, 31);
+				set.add(127);
+			} else if (name.equals("graph") || name.equals("print") || name.equals("ascii")) {
+				set.any = true;
+			} else {
+				throw new UnsupportedSyntaxException();
+			}
+			// the Unicode variants
+			set.nonAscii = true;
+		}
+	}
+}
@@ -16,57 +16,79 @@
  
 package me.oniguruma;
 
-import java.util.UUID;
-
-import org.jcodings.specific.UTF8Encoding;
 import org.joni.Matcher;
 import org.joni.Option;
 import org.joni.Regex;
-import org.joni.Region;
-import org.joni.Syntax;
-import org.joni.WarnCallback;
 
 /**
  * 
  * @see https://github.com/atom/node-oniguruma/blob/master/src/onig-reg-exp.cc
+ * 
+ * Instances are immutable and can be shared between threads: the matchers and the results of the
+ * searches in a string are kept by the {@link OnigString}.
  *
  */
 public class OnigRegExp {
 
-	private UUID lastSearchStrUniqueId;
-	private int lastSearchPosition;
-	private OnigResult lastSearchResult;
-	private Regex regex;
+	/**
+	 * Interned, so it is the same string for all the instances of a regular expression and looking up
+	 * their search results in an {@link OnigString} is cheap.
+	 */
+	private final String source;
+	/**
+	 * `\G` only matches at the start of the search, so the result of a search from one position says
+	 * nothing about the searches from later positions.
+	 */
+	private final boolean hasGAnchor;
+	private final Regex regex;
 
 	public OnigRegExp(String source) {
-		lastSearchStrUniqueId = null;
-		lastSearchPosition = -1;
-		lastSearchResult = null;
-		byte[] pattern = source.getBytes();
-		this.regex = new Regex(pattern, 0, pattern.length, Option.CAPTURE_GROUP, UTF8Encoding.INSTANCE, Syntax.DEFAULT,
-				WarnCallback.DEFAULT);
+		this.source = source.intern();
+		hasGAnchor = source.contains("\\G");
+		this.regex = RegexCache.get(this.source, Option.CAPTURE_GROUP);
 	}
 
+	/**
+	 * Returns the leftmost match at or after the UTF-16 offset `position`. A match found from an
+	 * earlier position by any instance of this regular expression is reused if it is at or after
+	 * `position`, and so is the absence of a match.
+	 */
 	public OnigResult Search(OnigString str, int position) {
-		if (lastSearchStrUniqueId == str.uniqueId() && lastSearchPosition <= position) {
-			if (lastSearchResult == null || lastSearchResult.LocationAt(0) >= position) {
-				return lastSearchResult;
+		OnigString.SearchState state = str.getSearchState(source);
+		if (state.position != -1 && state.position <= position && (!hasGAnchor || state.position == position)) {
+			if (state.location == -1) {
+				return null;
+			}
+			if (state.location >= position) {
+				return state.result;
 			}
 		}
 
-		lastSearchStrUniqueId = str.uniqueId();
-		lastSearchPosition = position;
-		lastSearchResult = Search(str.utf8_value(), position, str.utf8_length());
-		return lastSearchResult;
+		if (state.matcher == null) {
+			state.matcher = regex.matcher(str.utf8_value());
+		}
+		state.position = position;
+		int status = state.matcher.search(str.convertUtf16OffsetToUtf8(position), str.utf8_length(), Option.DEFAULT);
+		if (status == Matcher.FAILED) {
+			state.location = -1;
+			return null;
+		}
+		if (state.result == null) {
+			state.result = new OnigResult(regex.numberOfCaptures() + 1, -1);
+		}
+		state.result.set(str, state.matcher);
+		state.location = state.result.LocationAt(0);
+		return state.result;
 	}
 
-	private OnigResult Search(byte[] data, int position, int end) {
-		Matcher matcher = regex.matcher(data);
-		int status = matcher.search(position, end, Option.DEFAULT);
-		if (status != Matcher.FAILED) {
-			Region region = matcher.getEagerRegion();
-			return new OnigResult(region, -1);
-		}
-		return null;
+	String source() {
+		return source;
+	}
+
+	/**
+	 * Returns the number of capture groups, not counting the whole match.
+	 */
+	int captureCount() {
+		return regex.numberOfCaptures();
 	}
 }
@@ -16,19 +16,55 @@
  
 package me.oniguruma;
 
+import org.joni.Matcher;
 import org.joni.Region;
 
+/**
+ * The result of a search. The capture offsets are stored as UTF-8 offsets, but all the offsets
+ * reported by this class are UTF-16 offsets into `str`.
+ * 
+ * The searches of a regular expression in an {@link OnigString} refill the same instance, so a result
+ * is only valid until the next search of that regular expression in that string.
+ */
 public class OnigResult implements IOnigNextMatchResult {
 
 	private int indexInScanner;
-	private final Region region;
+	private OnigString str;
+	private final int[] beg;
+	private final int[] end;
 	private IOnigCaptureIndex[] captureIndices;
 
-	public OnigResult(Region region, int indexInScanner) {
-		this.region = region;
+	public OnigResult(OnigString str, Region region, int indexInScanner) {
+		this(region.numRegs, indexInScanner);
+		this.str = str;
+		System.arraycopy(region.beg, 0, this.beg, 0, region.numRegs);
+		System.arraycopy(region.end, 0, this.end, 0, region.numRegs);
+	}
+
+	OnigResult(int count, int indexInScanner) {
+		this.beg = new int[count];
+		this.end = new int[count];
 		this.indexInScanner = indexInScanner;
 	}
 
+	/**
+	 * Copies the offsets of the last successful search of `matcher`.
+	 */
+	void set(OnigString str, Matcher matcher) {
+		this.str = str;
+		this.captureIndices = null;
+		Region region = matcher.getRegion();
+		if (region == null) {
+			// no capture groups, joni only tracks the whole match
+			beg[0] = matcher.getBegin();
+			end[0] = matcher.getEnd();
+			return;
+		}
+		int count = Math.min(region.numRegs, beg.length);
+		System.arraycopy(region.beg, 0, beg, 0, count);
+		System.arraycopy(region.end, 0, end, 0, count);
+	}
+
 	@Override
 	public int getIndex() {
 		return indexInScanner;
@@ -41,17 +77,28 @@ public class OnigResult implements IOnigNextMatchResult {
 	@Override
 	public IOnigCaptureIndex[] getCaptureIndices() {
 		if (captureIndices == null) {
-			captureIndices = new IOnigCaptureIndex[region.beg.length];
-			int captureStart = -1, captureEnd = -1;
-			for (int i = 0; i < region.beg.length; i++) {
-				captureStart = region.beg[i];
-				captureEnd = region.end[i];
-				captureIndices[i] = new OnigCaptureIndex(i, captureStart, captureEnd);
+			captureIndices = new IOnigCaptureIndex[beg.length];
+			for (int i = 0; i < beg.length; i++) {
+				captureIndices[i] = new OnigCaptureIndex(i, getBegin(i), getEnd(i));
 			}
 		}
 		return captureIndices;
 	}
 
+	/**
+	 * Returns the start of capture `group`, or -1 if the group did not participate in the match.
+	 */
+	public int getBegin(int group) {
+		return str.convertUtf8OffsetToUtf16(beg[group]);
+	}
+
+	/**
+	 * Returns the end of capture `group`, or -1 if the group did not participate in the match.
+	 */
+	public int getEnd(int group) {
+		return str.convertUtf8OffsetToUtf16(end[group]);
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder result = new StringBuilder();
@@ -76,14 +123,14 @@ public class OnigResult implements IOnigNextMatchResult {
 	}
 
 	public int LocationAt(int index) {
-		if (region.beg.length > 0) {
-			return region.beg[0] + index;
+		if (beg.length > 0) {
+			return getBegin(0) + index;
 		}
 		return 0;
 	}
 
 	public int count() {
-		return region.beg.length;
+		return beg.length;
 	}
 
 }
@@ -21,7 +21,38 @@ public class OnigScanner {
 	private final OnigSearcher searcher;
 
 	public OnigScanner(String[] regexps) {
-		this.searcher = new OnigSearcher(regexps);
+		this(regexps, null, false);
+	}
+
+	public OnigScanner(String[] regexps, boolean combined) {
+		this(regexps, null, combined);
+	}
+
+	public OnigScanner(String[] regexps, OnigPrefilter[] prefilters) {
+		this(regexps, prefilters, false);
+	}
+
+	/**
+	 * @param prefilters the prefilter of each regular expression (entries may be null), or null
+	 * @param combined search all the regular expressions in one pass, see {@link OnigSearcher}
+	 */
+	public OnigScanner(String[] regexps, OnigPrefilter[] prefilters, boolean combined) {
+		this.searcher = new OnigSearcher(regexps, prefilters, combined);
+	}
+
+	/**
+	 * Creates a scanner with the regular expressions of `base`, except the one at `index` that is
+	 * replaced by `regexp`, see {@link OnigSearcher#OnigSearcher(OnigSearcher, int, String)}.
+	 */
+	public OnigScanner(OnigScanner base, int index, String regexp) {
+		this.searcher = new OnigSearcher(base.searcher, index, regexp);
+	}
+
+	/**
+	 * Returns true if the regular expressions are searched in one pass, see {@link OnigSearcher}.
+	 */
+	public boolean isCombined() {
+		return searcher.isCombined();
 	}
 
 	public IOnigNextMatchResult _findNextMatchSync(OnigString lin, int pos) {
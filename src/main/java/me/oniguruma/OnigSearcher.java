@@ -19,26 +19,188 @@ package me.oniguruma;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.joni.exception.JOniException;
+
+/**
+ * Searches a list of regular expressions.
+ * 
+ * By default every regular expression is searched on its own. In combined mode the regular
+ * expressions are also compiled into one alternation `(r0)|(r1)|...`: a single search finds the
+ * leftmost location where any of them matches (and, at that location, the first one that matches),
+ * and only the winning regular expression is then searched again to get its own captures. Regular
+ * expressions that cannot be embedded in the alternation (back references, subexpression calls,
+ * conditionals, extended syntax) are still searched on their own, and the results are merged with
+ * the same leftmost-then-first-index rule.
+ * 
+ * In both modes, a regular expression with an {@link OnigPrefilter} is not searched on its own
+ * when the prefilter shows that it cannot match before the best match found so far.
+ */
 public class OnigSearcher {
 
 	private final List<OnigRegExp> regExps;
+	private final OnigPrefilter[] prefilters;
+	/**
+	 * True if the searcher was created with prefilters: the regular expressions that replace one of
+	 * them then get their own.
+	 */
+	private final boolean prefiltered;
+
+	/**
+	 * The alternation of the regular expressions listed in `combinedIndices`, or null.
+	 */
+	private OnigRegExp combinedRegExp;
+	/**
+	 * For each alternative, the index of its regular expression in `regExps`.
+	 */
+	private int[] combinedIndices;
+	/**
+	 * For each alternative, the capture group that wraps it in `combinedRegExp`.
+	 */
+	private int[] combinedGroups;
+	/**
+	 * The indices of the regular expressions that are searched on their own.
+	 */
+	private int[] separateIndices;
 
 	public OnigSearcher(String[] regexps) {
+		this(regexps, null, false);
+	}
+
+	public OnigSearcher(String[] regexps, OnigPrefilter[] prefilters, boolean combined) {
 		this.regExps = new ArrayList<OnigRegExp>();
 		for (int i = 0; i < regexps.length; i++) {
 			this.regExps.add(new OnigRegExp(regexps[i]));
 		}
+		this.prefilters = prefilters != null ? prefilters : new OnigPrefilter[regexps.length];
+		this.prefiltered = prefilters != null;
+		if (combined) {
+			combine(regexps);
+		}
+	}
+
+	/**
+	 * Creates a searcher with the regular expressions of `base`, except the one at `index` that is
+	 * replaced by `regexp`: only `regexp` is compiled, and gets a prefilter if `base` uses them, even if
+	 * the regular expression it replaces had none.
+	 */
+	public OnigSearcher(OnigSearcher base, int index, String regexp) {
+		this.regExps = new ArrayList<OnigRegExp>(base.regExps);
+		this.regExps.set(index, new OnigRegExp(regexp));
+		this.prefilters = base.prefilters.clone();
+		this.prefilters[index] = base.prefiltered ? OnigPrefilter.create(regexp) : null;
+		this.prefiltered = base.prefiltered;
+		if (base.isCombined()) {
+			String[] regexps = new String[regExps.size()];
+			for (int i = 0; i < regexps.length; i++) {
+				regexps[i] = regExps.get(i).source();
+			}
+			combine(regexps);
+		}
+	}
+
+	public boolean isCombined() {
+		return combinedRegExp != null;
+	}
+
+	private void combine(String[] regexps) {
+		List<Integer> combinedIndices = new ArrayList<Integer>();
+		List<Integer> separateIndices = new ArrayList<Integer>();
+		for (int i = 0; i < regexps.length; i++) {
+			if (canCombine(regexps[i])) {
+				combinedIndices.add(i);
+			} else {
+				separateIndices.add(i);
+			}
+		}
+		if (combinedIndices.size() < 2) {
+			return;
+		}
+
+		StringBuilder source = new StringBuilder();
+		int[] groups = new int[combinedIndices.size()];
+		int group = 1;
+		for (int i = 0; i < groups.length; i++) {
+			int index = combinedIndices.get(i);
+			if (i > 0) {
+				source.append('|');
+			}
+			source.append('(').append(regexps[index]).append(')');
+			groups[i] = group;
+			group += regExps.get(index).captureCount() + 1;
+		}
+
+		OnigRegExp combinedRegExp;
+		try {
+			combinedRegExp = new OnigRegExp(source.toString());
+		} catch (JOniException e) {
+			return;
+		}
+		if (combinedRegExp.captureCount() != group - 1) {
+			// the groups are not numbered as expected, keep searching separately
+			return;
+		}
+
+		this.combinedRegExp = combinedRegExp;
+		this.combinedIndices = toArray(combinedIndices);
+		this.combinedGroups = groups;
+		this.separateIndices = toArray(separateIndices);
+	}
+
+	/**
+	 * Returns true if `source` means the same when wrapped in a capture group of a larger pattern:
+	 * it must not refer to groups by number or name, and must not use the extended syntax, where a
+	 * trailing comment would swallow the closing parenthesis.
+	 */
+	static boolean canCombine(String source) {
+		int length = source.length();
+		for (int i = 0; i < length - 1; i++) {
+			char ch = source.charAt(i);
+			char next = source.charAt(i + 1);
+			if (ch == '\\') {
+				if ((next >= '1' && next <= '9') || next == 'k' || next == 'g') {
+					return false;
+				}
+				i++;
+			} else if (ch == '(' && next == '?') {
+				for (int j = i + 2; j < length; j++) {
+					char option = source.charAt(j);
+					if (option == 'x' || option == '(') {
+						return false;
+					}
+					if (option != 'i' && option != 'm' && option != '-') {
+						break;
+					}
+				}
+			}
+		}
+		return true;
 	}
 
+	private static int[] toArray(List<Integer> list) {
+		int[] result = new int[list.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = list.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the leftmost match at or after the UTF-16 offset `charOffset`. If several regular
+	 * expressions match at the same location, the first one wins.
+	 */
 	public OnigResult search(OnigString source, int charOffset) {
-		int byteOffset = charOffset;
+		if (combinedRegExp != null) {
+			return searchCombined(source, charOffset);
+		}
 
 		int bestLocation = 0;
 		OnigResult bestResult = null;
-		int index = 0;
 
-		for (OnigRegExp regExp : regExps) {
-			OnigResult result = regExp.Search(source, byteOffset);
+		for (int index = 0; index < regExps.size(); index++) {
+			if (!canMatchBefore(index, source, charOffset, bestResult != null ? bestLocation : Integer.MAX_VALUE)) {
+				continue;
+			}
+			OnigResult result = regExps.get(index).Search(source, charOffset);
 			if (result != null && result.count() > 0) {
 				int location = result.LocationAt(0);
 				
@@ -48,13 +210,74 @@ public class OnigSearcher {
 					bestResult.setIndex(index);
 				}
 
-				if (location == byteOffset) {
+				if (location == charOffset) {
 					break;
 				}
 			}
-			index++;
 		}
 		return bestResult;
 	}
 
+	/**
+	 * Returns false if the prefilter of the regular expression at `index` shows that it has no match
+	 * starting before `location`.
+	 */
+	private boolean canMatchBefore(int index, OnigString source, int charOffset, int location) {
+		OnigPrefilter prefilter = prefilters[index];
+		if (prefilter == null) {
+			return true;
+		}
+		int start = prefilter.find(source, charOffset);
+		return start != -1 && start < location;
+	}
+
+	private OnigResult searchCombined(OnigString source, int charOffset) {
+		int bestIndex = -1;
+		int bestLocation = 0;
+
+		OnigResult combinedResult = combinedRegExp.Search(source, charOffset);
+		if (combinedResult != null) {
+			bestLocation = combinedResult.LocationAt(0);
+			for (int i = 0; i < combinedGroups.length; i++) {
+				if (combinedResult.getBegin(combinedGroups[i]) != -1) {
+					bestIndex = combinedIndices[i];
+					break;
+				}
+			}
+		}
+
+		OnigResult bestResult = null;
+		for (int index : separateIndices) {
+			if (bestIndex != -1 && bestLocation == charOffset && bestIndex < index) {
+				break;
+			}
+			// to win, a later regular expression has to match before the best location, an earlier
+			// one may also match at it
+			int limit = bestIndex == -1 ? Integer.MAX_VALUE : bestIndex < index ? bestLocation : bestLocation + 1;
+			if (!canMatchBefore(index, source, charOffset, limit)) {
+				continue;
+			}
+			OnigResult result = regExps.get(index).Search(source, charOffset);
+			if (result != null && result.count() > 0) {
+				int location = result.LocationAt(0);
+				if (bestIndex == -1 || location < bestLocation || (location == bestLocation && index < bestIndex)) {
+					bestIndex = index;
+					bestLocation = location;
+					bestResult = result;
+				}
+			}
+		}
+
+		if (bestIndex == -1) {
+			return null;
+		}
+		if (bestResult == null) {
+			// the alternative matched at `bestLocation`, and so does the leftmost match of its own
+			// regular expression
+			bestResult = regExps.get(bestIndex).Search(source, charOffset);
+		}
+		bestResult.setIndex(bestIndex);
+		return bestResult;
+	}
+
 }
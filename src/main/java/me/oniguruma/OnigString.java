@@ -16,30 +16,126 @@
  
 package me.oniguruma;
 
-import java.nio.charset.Charset;
-import java.util.UUID;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joni.Matcher;
 
 /**
  * Oniguruma string.
  * 
+ * Holds the UTF-8 encoding of a Java (UTF-16) string and the tables to map offsets between both
+ * encodings. Strings that are pure ASCII have identical offsets in both encodings and skip the
+ * tables.
+ * 
+ * It also keeps the state of the searches of every regular expression in it: the matcher, and the
+ * last search result, so a regular expression shared by several scanners is not searched again from
+ * positions where its next match is already known. An instance must only be used by one thread.
+ * 
  * @see https://github.com/atom/node-oniguruma/blob/master/src/onig-string.cc
  *
  */
 public class OnigString {
 
-	private static final String UTF_8 = "UTF-8";
-	
+	/**
+	 * Source of unique ids. Ids only have to differ between strings that are alive at the same
+	 * time, so a counter is enough.
+	 */
+	private static final AtomicLong LAST_UNIQUE_ID = new AtomicLong();
+
 	private final String str;
-	private byte[] value;
-	private UUID uniqueId;
+	private final byte[] value;
+	private final long uniqueId;
+	/**
+	 * UTF-16 offset => UTF-8 offset, null if the string is ASCII.
+	 */
+	private final int[] charToByte;
+	/**
+	 * UTF-8 offset => UTF-16 offset, null if the string is ASCII.
+	 */
+	private final int[] byteToChar;
+	/**
+	 * Regular expression source => state of its searches, created on the first search.
+	 */
+	private Map<String, SearchState> searchStates;
 
 	public OnigString(String str) {
 		this.str = str;
-		this.value = str.getBytes(Charset.forName(UTF_8));
-		this.uniqueId = UUID.randomUUID();
+		this.uniqueId = LAST_UNIQUE_ID.incrementAndGet();
+
+		int len = str.length();
+		int utf8Length = 0;
+		for (int i = 0; i < len; i++) {
+			char ch = str.charAt(i);
+			if (ch < 0x80) {
+				utf8Length++;
+			} else if (ch < 0x800) {
+				utf8Length += 2;
+			} else if (Character.isHighSurrogate(ch) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+				utf8Length += 4;
+				i++;
+			} else if (Character.isSurrogate(ch)) {
+				// unpaired surrogate, encoded as '?' like String.getBytes does
+				utf8Length++;
+			} else {
+				utf8Length += 3;
+			}
+		}
+
+		byte[] bytes = new byte[utf8Length];
+		if (utf8Length == len) {
+			// ASCII fast path
+			for (int i = 0; i < len; i++) {
+				bytes[i] = (byte) str.charAt(i);
+			}
+			this.value = bytes;
+			this.charToByte = null;
+			this.byteToChar = null;
+			return;
+		}
+
+		int[] c2b = new int[len + 1];
+		int[] b2c = new int[utf8Length + 1];
+		int b = 0;
+		for (int i = 0; i < len; i++) {
+			char ch = str.charAt(i);
+			int charStart = i;
+			int start = b;
+			c2b[i] = start;
+			if (ch < 0x80) {
+				bytes[b++] = (byte) ch;
+			} else if (ch < 0x800) {
+				bytes[b++] = (byte) (0xC0 | (ch >> 6));
+				bytes[b++] = (byte) (0x80 | (ch & 0x3F));
+			} else if (Character.isHighSurrogate(ch) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(ch, str.charAt(i + 1));
+				bytes[b++] = (byte) (0xF0 | (codePoint >> 18));
+				bytes[b++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				bytes[b++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				bytes[b++] = (byte) (0x80 | (codePoint & 0x3F));
+				// the low surrogate maps to the same code point
+				c2b[++i] = start;
+			} else if (Character.isSurrogate(ch)) {
+				bytes[b++] = (byte) '?';
+			} else {
+				bytes[b++] = (byte) (0xE0 | (ch >> 12));
+				bytes[b++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+				bytes[b++] = (byte) (0x80 | (ch & 0x3F));
+			}
+			for (int j = start; j < b; j++) {
+				b2c[j] = charStart;
+			}
+		}
+		c2b[len] = utf8Length;
+		b2c[utf8Length] = len;
+
+		this.value = bytes;
+		this.charToByte = c2b;
+		this.byteToChar = b2c;
 	}
 
-	public UUID uniqueId() {
+	public long uniqueId() {
 		return uniqueId;
 	}
 
@@ -48,10 +144,72 @@ public class OnigString {
 	}
 
 	public int utf8_length() {
-		return str.length();
+		return value.length;
+	}
+
+	/**
+	 * Returns the UTF-8 offset of the UTF-16 offset `charOffset`.
+	 */
+	public int convertUtf16OffsetToUtf8(int charOffset) {
+		if (charToByte == null || charOffset < 0) {
+			return charOffset;
+		}
+		if (charOffset >= charToByte.length) {
+			return value.length;
+		}
+		return charToByte[charOffset];
+	}
+
+	/**
+	 * Returns the UTF-16 offset of the UTF-8 offset `byteOffset`.
+	 */
+	public int convertUtf8OffsetToUtf16(int byteOffset) {
+		if (byteToChar == null || byteOffset < 0) {
+			return byteOffset;
+		}
+		if (byteOffset >= byteToChar.length) {
+			return str.length();
+		}
+		return byteToChar[byteOffset];
 	}
 
 	public String getString() {
 		return str;
 	}
+
+	/**
+	 * Returns the state of the searches of the regular expression `source` (interned) in this string.
+	 */
+	SearchState getSearchState(String source) {
+		if (searchStates == null) {
+			searchStates = new HashMap<String, SearchState>();
+		}
+		SearchState state = searchStates.get(source);
+		if (state == null) {
+			state = new SearchState();
+			searchStates.put(source, state);
+		}
+		return state;
+	}
+
+	/**
+	 * The state of the searches of one regular expression in this string.
+	 */
+	static class SearchState {
+		/**
+		 * The UTF-16 offset of the last search, -1 if none.
+		 */
+		int position = -1;
+		/**
+		 * Where the last search found a match (`result`), -1 if it found none.
+		 */
+		int location;
+		Matcher matcher;
+		OnigResult result;
+		/**
+		 * The UTF-16 offset of the last {@link OnigPrefilter#find(OnigString, int)}, -1 if none.
+		 */
+		int prefilterPosition = -1;
+		int prefilterResult;
+	}
 }
@@ -0,0 +1,136 @@
+package me.oniguruma;
+
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jcodings.specific.UTF8Encoding;
+import org.joni.Regex;
+import org.joni.Syntax;
+import org.joni.WarnCallback;
+
+/**
+ * The compiled regular expressions, by source and options, shared by all the scanners of all the
+ * grammars: the same patterns (escapes, whitespace, embedded grammars) are only compiled once. A
+ * compiled {@link Regex} is immutable, so it can be used by several threads.
+ * 
+ * The least recently used regular expressions are evicted first. Regular expressions are compiled
+ * outside of the lock, so two threads can compile the same one at the same time.
+ */
+public class RegexCache {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static int maxSize = 4096;
+	private static long hits;
+	private static long misses;
+	private static final LinkedHashMap<Key, Regex> regexes = new LinkedHashMap<Key, Regex>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Regex> eldest) {
+			return this.size() > maxSize;
+		}
+	};
+
+	private RegexCache() {
+	}
+
+	/**
+	 * Returns `source` compiled with `options` (see {@link org.joni.Option}).
+	 */
+	public static Regex get(String source, int options) {
+		Key key = new Key(source, options);
+		synchronized (regexes) {
+			Regex regex = regexes.get(key);
+			if (regex != null) {
+				hits++;
+				return regex;
+			}
+			misses++;
+		}
+
+		byte[] pattern = source.getBytes(UTF_8);
+		Regex regex = new Regex(pattern, 0, pattern.length, options, UTF8Encoding.INSTANCE, Syntax.DEFAULT,
+				WarnCallback.DEFAULT);
+		synchronized (regexes) {
+			Regex existing = regexes.get(key);
+			if (existing != null) {
+				return existing;
+			}
+			regexes.put(key, regex);
+		}
+		return regex;
+	}
+
+	/**
+	 * Sets the maximum number of regular expressions kept, 0 to keep none.
+	 */
+	public static void setMaxSize(int size) {
+		synchronized (regexes) {
+			maxSize = size;
+			while (regexes.size() > maxSize) {
+				regexes.remove(regexes.keySet().iterator().next());
+			}
+		}
+	}
+
+	public static int getMaxSize() {
+		synchronized (regexes) {
+			return maxSize;
+		}
+	}
+
+	public static int size() {
+		synchronized (regexes) {
+			return regexes.size();
+		}
+	}
+
+	public static long getHits() {
+		synchronized (regexes) {
+			return hits;
+		}
+	}
+
+	public static long getMisses() {
+		synchronized (regexes) {
+			return misses;
+		}
+	}
+
+	/**
+	 * Removes the regular expressions and resets the counters.
+	 */
+	public static void clear() {
+		synchronized (regexes) {
+			regexes.clear();
+			hits = 0;
+			misses = 0;
+		}
+	}
+
+	private static class Key {
+		private final String source;
+		private final int options;
+
+		Key(String source, int options) {
+			this.source = source;
+			this.options = options;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * source.hashCode() + options;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			return options == key.options && source.equals(key.source);
+		}
+	}
+}
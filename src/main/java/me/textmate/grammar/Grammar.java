@@ -1,10 +1,18 @@
 package me.textmate.grammar;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.function.Function;
 
 import me.textmate.types.IRawGrammar;
@@ -15,21 +23,25 @@ import me.textmate.utils.Utils;
 import me.textmate.main.IEmbeddedLanguagesMap;
 import me.textmate.main.IGrammar;
 import me.textmate.main.IToken;
+import me.textmate.main.ITokenizeDocumentResult;
 import me.textmate.main.ITokenizeLineResult;
 import me.textmate.main.ITokenizeLineResult2;
+import me.textmate.main.TokenBuffer;
+import me.textmate.matcher.Matcher;
 import me.textmate.matcher.MatcherCreator;
 import me.oniguruma.IOnigCaptureIndex;
 import me.oniguruma.IOnigNextMatchResult;
+import me.oniguruma.OnigString;
 import me.textmate.rule.BeginEndRule;
 import me.textmate.rule.BeginWhileRule;
 import me.textmate.rule.CaptureRule;
+import me.textmate.rule.CompileStats;
 import me.textmate.rule.ICompiledRule;
 import me.textmate.rule.IRuleFactoryHelper;
 import me.textmate.rule.MatchRule;
 import me.textmate.rule.Rule;
 import me.textmate.rule.RuleFactory;
 import me.textmate.theme.ThemeTrieElementRule;
-import me.textmate.Predicate;
 
 public class Grammar implements IGrammar, IRuleFactoryHelper {
   /**
@@ -98,20 +110,25 @@ public class Grammar implements IGrammar, IRuleFactoryHelper {
     result.remove(grammar.scopeName);
   }
 
+  /**
+   * Adds the injections of `selector` to `result`. The scope names of the selector are compiled to the
+   * ids of `scopeTable`, and matched against the content scope list of a state without generating its
+   * scopes, see `ScopeListElement.matchesSelector`.
+   */
   public static void collectInjections(ArrayList<Injection> result, String selector, IRawRule rule,
-      IRuleFactoryHelper ruleFactoryHelper, IRawGrammar grammar) {
+      IRuleFactoryHelper ruleFactoryHelper, IRawGrammar grammar, final ScopeTable scopeTable) {
 
-    final Predicate<String, String> scopesAreMatching = new Predicate<String, String>() {
-      public boolean call(String thisScopeName, String scopeName) {
-        if (thisScopeName == null) {
-          return false;
-        }
-        if (thisScopeName == scopeName) {
-          return true;
+    Function<String[], Matcher<StackElement>> nameMatcherFactory = new Function<String[], Matcher<StackElement>>() {
+      public Matcher<StackElement> apply(String[] identifiers) {
+        final int[] selectorIds = new int[identifiers.length];
+        for (int i = 0; i < identifiers.length; i++) {
+          selectorIds[i] = scopeTable.getId(identifiers[i]);
         }
-        int len = scopeName.length();
-        return thisScopeName.length() > len && thisScopeName.substring(0, len) == scopeName
-            && thisScopeName.charAt(len) == '.';
+        return new Matcher<StackElement>() {
+          public boolean call(StackElement stackElements) {
+            return ScopeListElement.matchesSelector(stackElements.contentNameScopesList, selectorIds, scopeTable);
+          }
+        };
       }
     };
 
@@ -119,28 +136,7 @@ public class Grammar implements IGrammar, IRuleFactoryHelper {
     for (String subExpression : subExpressions) {
       String expressionString = subExpression.replaceAll("L:", "");
       Injection injection = new Injection();
-      injection.matcher = (new MatcherCreator<StackElement>()).createMatcher(expressionString,
-          new Predicate<String[], StackElement>() {
-            public boolean call(String[] identifiers, StackElement stackElements) {
-              String[] scopes = stackElements.contentNameScopesList.generateScopes();
-              int lastIndex = 0;
-              // is every identifier res == true
-              for (String identifier : identifiers) {
-                boolean res = false;
-                for (int i = lastIndex; i < scopes.length; i++) {
-                  if (scopesAreMatching.call(scopes[i], identifier)) {
-                    lastIndex = i;
-                    res = true;
-                    break;
-                  }
-                }
-                if (!res) {
-                  return false;
-                }
-              }
-              return true;
-            }
-          });
+      injection.matcher = (new MatcherCreator<StackElement>()).createMatcher(expressionString, nameMatcherFactory);
       injection.ruleId = RuleFactory.getCompiledRuleId(rule, ruleFactoryHelper, grammar.repository);
       injection.grammar = grammar;
       injection.priorityMatch = expressionString.length() < subExpression.length();
@@ -155,8 +151,8 @@ public class Grammar implements IGrammar, IRuleFactoryHelper {
    * If any fails, cut off the entire stack above the failed while condition. While conditions
    * may also advance the linePosition.
    */
-  private static IWhileCheckResult _checkWhileConditions(Grammar grammar, String lineText, boolean isFirstLine,
-      int linePos, StackElement stack, LineTokens lineTokens) {
+  private static IWhileCheckResult _checkWhileConditions(Grammar grammar, OnigString lineText, boolean isFirstLine,
+      int linePos, StackElement stack, LineTokens lineTokens, EnterPositions enterPositions) {
     int anchorPosition = -1;
     List<IWhileStack> whileRules = new ArrayList<IWhileStack>();
     for (StackElement node = stack.pop(); node != null; node = node.pop()) {
@@ -187,8 +183,8 @@ public class Grammar implements IGrammar, IRuleFactoryHelper {
         IOnigCaptureIndex[] captureIndices = r.getCaptureIndices();
         if (captureIndices != null && captureIndices.length > 0) {
           lineTokens.produce(whileRule.stack, captureIndices[0].getStart());
-          handleCaptures(grammar, lineText, isFirstLine, whileRule.stack, lineTokens, whileRule.rule.whileCaptures,
-              captureIndices);
+          handleCaptures(grammar, lineText, isFirstLine, whileRule.stack, lineTokens, enterPositions,
+              whileRule.rule.whileCaptures, captureIndices);
           lineTokens.produce(whileRule.stack, captureIndices[0].getEnd());
           anchorPosition = captureIndices[0].getEnd();
           if (captureIndices[0].getEnd() > linePos) {
@@ -220,12 +216,13 @@ public class Grammar implements IGrammar, IRuleFactoryHelper {
     return grammar;
   }
 
-  private static void handleCaptures(Grammar grammar, String lineText, boolean isFirstLine, StackElement stack,
-      LineTokens lineTokens, CaptureRule[] captures, IOnigCaptureIndex[] captureIndices) {
+  private static void handleCaptures(Grammar grammar, OnigString lineText, boolean isFirstLine, StackElement stack,
+      LineTokens lineTokens, EnterPositions enterPositions, CaptureRule[] captures, IOnigCaptureIndex[] captureIndices) {
     if (captures.length == 0) {
       return;
     }
 
+    String lineTextContent = lineText.getString();
     int len = Math.min(captures.length, captureIndices.length);
     Stack<LocalStackElement> localStack = new Stack<LocalStackElement>();
     int maxEnd = captureIndices[0].getEnd();
@@ -266,24 +263,27 @@ public class Grammar implements IGrammar, IRuleFactoryHelper {
 
       if (captureRule.retokenizeCapturedWithRuleId != null && captureRule.retokenizeCapturedWithRuleId != 0) {
         // the capture requires additional matching
-        String scopeName = captureRule.getName(lineText, captureIndices);
-        ScopeListElement nameScopesList = stack.contentNameScopesList.push(grammar, scopeName);
-        String contentName = captureRule.getContentName(lineText, captureIndices);
-        ScopeListElement contentNameScopesList = nameScopesList.push(grammar, contentName);
-
-        StackElement stackClone = stack.push(captureRule.retokenizeCapturedWithRuleId, captureIndex.getStart(), null,
-            nameScopesList, contentNameScopesList);
-
-        _tokenizeString(grammar, lineText.substring(0, captureIndex.getEnd()), (isFirstLine && captureIndex.getStart() == 0),
-            captureIndex.getStart(), stackClone, lineTokens);
+        ScopeListElement nameScopesList = _pushName(grammar, stack.contentNameScopesList, captureRule,
+            lineTextContent, captureIndices);
+        ScopeListElement contentNameScopesList = _pushContentName(grammar, nameScopesList, captureRule,
+            lineTextContent, captureIndices);
+
+        StackElement stackClone = stack.push(captureRule.retokenizeCapturedWithRuleId, null, nameScopesList,
+            contentNameScopesList);
+        // the states below `stackClone` keep their positions
+        EnterPositions cloneEnterPositions = new EnterPositions(enterPositions);
+        cloneEnterPositions.set(stackClone.depth, captureIndex.getStart());
+
+        OnigString onigSubStr = new OnigString(lineTextContent.substring(0, captureIndex.getEnd()));
+        _tokenizeString(grammar, onigSubStr, (isFirstLine && captureIndex.getStart() == 0), captureIndex.getStart(),
+            stackClone, lineTokens, cloneEnterPositions);
         continue;
       }
 
-      String captureRuleScopeName = captureRule.getName(lineText, captureIndices);
-      if (captureRuleScopeName != null) {
+      ScopeListElement base = localStack.size() > 0 ? localStack.peek().scopes : stack.contentNameScopesList;
+      ScopeListElement captureRuleScopesList = _pushName(grammar, base, captureRule, lineTextContent, captureIndices);
+      if (captureRuleScopesList != base) {
         // push
-        ScopeListElement base = localStack.size() > 0 ? localStack.peek().scopes : stack.contentNameScopesList;
-        ScopeListElement captureRuleScopesList = base.push(grammar, captureRuleScopeName);
         localStack.push(new LocalStackElement(captureRuleScopesList, captureIndex.getEnd()));
       }
     }
@@ -303,7 +303,32 @@ public class Grammar implements IGrammar, IRuleFactoryHelper {
     return String.join("\n", r);
   }
 
-  private static IMatchInjectionsResult matchInjections(Injection[] injections, Grammar grammar, String lineText,
+  /**
+   * Pushes the name of `rule` on `scopesList`. A name built from captures that the scope table has no
+   * id for and no room left for is pushed by name, see `ScopeTable.getDynamicId`.
+   */
+  private static ScopeListElement _pushName(Grammar grammar, ScopeListElement scopesList, Rule rule,
+      String lineText, IOnigCaptureIndex[] captureIndices) {
+    int scopeId = rule.getNameScopeId(grammar, lineText, captureIndices);
+    if (scopeId == ScopeTable.UNINTERNED) {
+      return scopesList.push(grammar, rule.getName(lineText, captureIndices));
+    }
+    return scopesList.push(grammar, scopeId);
+  }
+
+  /**
+   * Like `_pushName`, for the content name of `rule`.
+   */
+  private static ScopeListElement _pushContentName(Grammar grammar, ScopeListElement scopesList, Rule rule,
+      String lineText, IOnigCaptureIndex[] captureIndices) {
+    int scopeId = rule.getContentNameScopeId(grammar, lineText, captureIndices);
+    if (scopeId == ScopeTable.UNINTERNED) {
+      return scopesList.push(grammar, rule.getContentName(lineText, captureIndices));
+    }
+    return scopesList.push(grammar, scopeId);
+  }
+
+  private static IMatchInjectionsResult matchInjections(Injection[] injections, Grammar grammar, OnigString lineText,
       boolean isFirstLine, int linePos, StackElement stack, int anchorPosition) {
     // The lower the better
     int bestMatchRating = Integer.MAX_VALUE;
@@ -351,7 +376,7 @@ public class Grammar implements IGrammar, IRuleFactoryHelper {
     return null;
   }
 
-  private static IMatchResult matchRule(Grammar grammar, String lineText, boolean isFirstLine, int linePos,
+  private static IMatchResult matchRule(Grammar grammar, OnigString lineText, boolean isFirstLine, int linePos,
       StackElement stack, int anchorPosition) {
     Rule rule = stack.getRule(grammar);
     ICompiledRule ruleScanner = rule.compile(grammar, stack.endRule, isFirstLine, linePos == anchorPosition);
@@ -367,7 +392,7 @@ public class Grammar implements IGrammar, IRuleFactoryHelper {
     return null;
   }
 
-  private static IMatchResult matchRuleOrInjections(Grammar grammar, String lineText, boolean isFirstLine, int linePos,
+  private static IMatchResult matchRuleOrInjections(Grammar grammar, OnigString lineText, boolean isFirstLine, int linePos,
       StackElement stack, int anchorPosition) {
     // Look for normal grammar rule
     IMatchResult matchResult = matchRule(grammar, lineText, isFirstLine, linePos, stack, anchorPosition);
@@ -403,13 +428,15 @@ public class Grammar implements IGrammar, IRuleFactoryHelper {
     return matchResult;
   }
 
-  private static StackElement _tokenizeString(Grammar grammar, String lineText, boolean isFirstLine, int linePos,
-      StackElement stack, LineTokens lineTokens) {
-    final int lineLength = lineText.length();
+  private static StackElement _tokenizeString(Grammar grammar, OnigString lineText, boolean isFirstLine, int linePos,
+      StackElement stack, LineTokens lineTokens, EnterPositions enterPositions) {
+    final String lineTextContent = lineText.getString();
+    final int lineLength = lineTextContent.length();
 
     boolean STOP = false;
 
-    IWhileCheckResult whileCheckResult = _checkWhileConditions(grammar, lineText, isFirstLine, linePos, stack, lineTokens);
+    IWhileCheckResult whileCheckResult = _checkWhileConditions(grammar, lineText, isFirstLine, linePos, stack, lineTokens,
+        enterPositions);
     stack = whileCheckResult.stack;
     linePos = whileCheckResult.linePos;
     isFirstLine = whileCheckResult.isFirstLine;
@@ -418,7 +445,7 @@ public class Grammar implements IGrammar, IRuleFactoryHelper {
     while (!STOP) {
       if (IN_DEBUG_MODE) {
         System.out.println("");
-        System.out.println("@@scanNext: |" + lineText.replaceAll("\\n$", "\\\\n").substring(linePos) + "|");
+        System.out.println("@@scanNext: |" + lineTextContent.replaceAll("\\n$", "\\\\n").substring(linePos) + "|");
       }
       IMatchResult r = matchRuleOrInjections(grammar, lineText, isFirstLine, linePos, stack, anchorPosition);
 
@@ -448,14 +475,15 @@ public class Grammar implements IGrammar, IRuleFactoryHelper {
 
         lineTokens.produce(stack, captureIndices[0].getStart());
         stack = stack.setContentNameScopesList(stack.nameScopesList);
-        handleCaptures(grammar, lineText, isFirstLine, stack, lineTokens, poppedRule.endCaptures, captureIndices);
+        handleCaptures(grammar, lineText, isFirstLine, stack, lineTokens, enterPositions, poppedRule.endCaptures,
+            captureIndices);
         lineTokens.produce(stack, captureIndices[0].getEnd());
 
         // pop
         StackElement popped = stack;
         stack = stack.pop();
 
-        if (!hasAdvanced && popped.getEnterPos() == linePos) {
+        if (!hasAdvanced && enterPositions.get(popped.depth) == linePos) {
           // Grammar pushed & popped a rule without advancing
           System.err.println("[1] - Grammar is in an endless loop - Grammar pushed & popped a rule without advancing");
 
@@ -475,9 +503,10 @@ public class Grammar implements IGrammar, IRuleFactoryHelper {
 
         StackElement beforePush = stack;
         // push it on the stack rule
-        String scopeName = _rule.getName(lineText, captureIndices);
-        ScopeListElement nameScopesList = stack.contentNameScopesList.push(grammar, scopeName);
-        stack = stack.push(matchedRuleId, linePos, null, nameScopesList, nameScopesList);
+        ScopeListElement nameScopesList = _pushName(grammar, stack.contentNameScopesList, _rule, lineTextContent,
+            captureIndices);
+        stack = stack.push(matchedRuleId, null, nameScopesList, nameScopesList);
+        enterPositions.set(stack.depth, linePos);
 
         if (_rule instanceof BeginEndRule) {
           BeginEndRule pushedRule = (BeginEndRule) _rule;
@@ -485,16 +514,17 @@ public class Grammar implements IGrammar, IRuleFactoryHelper {
             System.out.println("  pushing " + pushedRule.debugName() + " - " + pushedRule.debugBeginRegExp());
           }
 
-          handleCaptures(grammar, lineText, isFirstLine, stack, lineTokens, pushedRule.beginCaptures, captureIndices);
+          handleCaptures(grammar, lineText, isFirstLine, stack, lineTokens, enterPositions, pushedRule.beginCaptures,
+              captureIndices);
           lineTokens.produce(stack, captureIndices[0].getEnd());
           anchorPosition = captureIndices[0].getEnd();
 
-          String contentName = pushedRule.getContentName(lineText, captureIndices);
-          ScopeListElement contentNameScopesList = nameScopesList.push(grammar, contentName);
+          ScopeListElement contentNameScopesList = _pushContentName(grammar, nameScopesList, pushedRule,
+              lineTextContent, captureIndices);
           stack = stack.setContentNameScopesList(contentNameScopesList);
 
           if (pushedRule.endHasBackReferences) {
-            stack = stack.setEndRule(pushedRule.getEndWithResolvedBackReferences(lineText, captureIndices));
+            stack = stack.setEndRule(pushedRule.getEndWithResolvedBackReferences(lineTextContent, captureIndices));
           }
 
           if (!hasAdvanced && beforePush.hasSameRuleAs(stack)) {
@@ -511,15 +541,16 @@ public class Grammar implements IGrammar, IRuleFactoryHelper {
             System.out.println("  pushing " + pushedRule.debugName());
           }
 
-          handleCaptures(grammar, lineText, isFirstLine, stack, lineTokens, pushedRule.beginCaptures, captureIndices);
+          handleCaptures(grammar, lineText, isFirstLine, stack, lineTokens, enterPositions, pushedRule.beginCaptures,
+              captureIndices);
           lineTokens.produce(stack, captureIndices[0].getEnd());
           anchorPosition = captureIndices[0].getEnd();
-          String contentName = pushedRule.getContentName(lineText, captureIndices);
-          ScopeListElement contentNameScopesList = nameScopesList.push(grammar, contentName);
+          ScopeListElement contentNameScopesList = _pushContentName(grammar, nameScopesList, pushedRule,
+              lineTextContent, captureIndices);
           stack = stack.setContentNameScopesList(contentNameScopesList);
 
           if (pushedRule.whileHasBackReferences) {
-            stack = stack.setEndRule(pushedRule.getWhileWithResolvedBackReferences(lineText, captureIndices));
+            stack = stack.setEndRule(pushedRule.getWhileWithResolvedBackReferences(lineTextContent, captureIndices));
           }
 
           if (!hasAdvanced && beforePush.hasSameRuleAs(stack)) {
@@ -536,7 +567,8 @@ public class Grammar implements IGrammar, IRuleFactoryHelper {
             System.out.println("  matched " + matchingRule.debugName() + " - " + matchingRule.debugMatchRegExp());
           }
 
-          handleCaptures(grammar, lineText, isFirstLine, stack, lineTokens, matchingRule.captures, captureIndices);
+          handleCaptures(grammar, lineText, isFirstLine, stack, lineTokens, enterPositions, matchingRule.captures,
+              captureIndices);
           lineTokens.produce(stack, captureIndices[0].getEnd());
 
           // pop rule immediately since it is a MatchRule
@@ -570,67 +602,148 @@ public class Grammar implements IGrammar, IRuleFactoryHelper {
   private final Map<String, IRawGrammar> _includedGrammars;
   private final IGrammarRepository _grammarRepository;
   private final IRawGrammar _grammar;
-  private ArrayList<Injection> _injections;
+  private static final Injection[] NO_INJECTIONS = new Injection[0];
+
+  private Injection[] _injections;
+  /**
+   * Set once the root rule and the injections are compiled: the rules are only registered before, so
+   * an initialized grammar can be shared by several threads.
+   */
+  private volatile boolean _initialized;
+  /**
+   * The scope list of the root state. The scope lists pushed on it are interned, see
+   * `ScopeListElement.push`, so the scope lists of the states of this grammar are shared. Recreated
+   * when the theme changes.
+   */
+  private volatile ScopeListElement _rootScopeList;
+  /**
+   * The interned states, see `_intern`: the current generation, and the previous one.
+   */
+  private volatile ConcurrentHashMap<StackElement, StackElement> _states;
+  private volatile ConcurrentHashMap<StackElement, StackElement> _oldStates;
+  /**
+   * The tokens of the last tokenized lines, null unless enabled by `setLineCacheSize`.
+   */
+  private volatile LineCache _lineCache;
+  private final CompileStats _compileStats;
+  private final ScopeTable _scopeTable;
   private final ScopeMetadataProvider _scopeMetadataProvider;
 
   public Grammar(IRawGrammar grammar, int initialLanguage, IEmbeddedLanguagesMap embeddedLanguages,
       IGrammarRepositoryAndIThemeProvider grammarRepository) {
-    this._scopeMetadataProvider = new ScopeMetadataProvider(initialLanguage, grammarRepository, embeddedLanguages);
+    this._scopeTable = grammarRepository.getScopeTable();
+    this._scopeMetadataProvider = new ScopeMetadataProvider(initialLanguage, grammarRepository, this._scopeTable,
+        embeddedLanguages);
 
     this._rootId = -1;
     this._lastRuleId = 0;
     this._ruleId2desc = new ArrayList<Rule>();
     this._includedGrammars = new HashMap<String, IRawGrammar>();
+    this._states = new ConcurrentHashMap<StackElement, StackElement>();
+    this._compileStats = new CompileStats();
     this._grammarRepository = grammarRepository;
     this._grammar = initGrammar(grammar, null);
   }
 
   public void onDidChangeTheme() {
     this._scopeMetadataProvider.onDidChangeTheme();
+    this._rootScopeList = null;
+    synchronized (this) {
+      this._states = new ConcurrentHashMap<StackElement, StackElement>();
+      this._oldStates = null;
+    }
+    LineCache lineCache = this._lineCache;
+    if (lineCache != null) {
+      lineCache.clear();
+    }
   }
 
   public ScopeMetadata getMetadataForScope(String scope) {
     return this._scopeMetadataProvider.getMetadataForScope(scope);
   }
 
-  public Injection[] getInjections(StackElement states) {
-    if (this._injections == null) {
-      this._injections = new ArrayList<Injection>();
-      // add injections from the current grammar
-      Map<String, IRawRule> rawInjections = this._grammar.injections;
-      if (rawInjections != null) {
-        for (String expression : rawInjections.keySet()) {
-          collectInjections(this._injections, expression, rawInjections.get(expression), this, this._grammar);
-        }
+  public ScopeMetadata getMetadataForScope(int scopeId) {
+    return this._scopeMetadataProvider.getMetadataForScope(scopeId);
+  }
+
+  public ScopeTable getScopeTable() {
+    return this._scopeTable;
+  }
+
+  public int getScopeId(String scopeName) {
+    return this._scopeTable.getId(scopeName);
+  }
+
+  public int getDynamicScopeId(String scopeName) {
+    return this._scopeTable.getDynamicId(scopeName);
+  }
+
+  public ScopeMetadata getMetadataForUninternedScope(String scopeName) {
+    return this._scopeMetadataProvider.getMetadataForUninternedScope(scopeName);
+  }
+
+  private synchronized void _initialize() {
+    if (this._initialized) {
+      return;
+    }
+    this._rootId = RuleFactory.getCompiledRuleId(this._grammar.repository.self(), this, this._grammar.repository);
+
+    ArrayList<Injection> injections = new ArrayList<Injection>();
+    // add injections from the current grammar
+    Map<String, IRawRule> rawInjections = this._grammar.injections;
+    if (rawInjections != null) {
+      for (String expression : rawInjections.keySet()) {
+        collectInjections(injections, expression, rawInjections.get(expression), this, this._grammar,
+            this._scopeTable);
       }
+    }
 
-      // add injection grammars contributed for the current scope
-      if (this._grammarRepository != null) {
-        String[] injectionScopeNames = this._grammarRepository.injections(this._grammar.scopeName);
-        if (injectionScopeNames != null) {
-          for (String injectionScopeName : injectionScopeNames) {
-            IRawGrammar injectionGrammar = this.getExternalGrammar(injectionScopeName);
-            if (injectionGrammar != null) {
-              String selector = injectionGrammar.injectionSelector;
-              if (selector != null) {
-                collectInjections(this._injections, selector, null, this, injectionGrammar);
-              }
+    // add injection grammars contributed for the current scope
+    if (this._grammarRepository != null) {
+      String[] injectionScopeNames = this._grammarRepository.injections(this._grammar.scopeName);
+      if (injectionScopeNames != null) {
+        for (String injectionScopeName : injectionScopeNames) {
+          IRawGrammar injectionGrammar = this.getExternalGrammar(injectionScopeName);
+          if (injectionGrammar != null) {
+            String selector = injectionGrammar.injectionSelector;
+            if (selector != null) {
+              collectInjections(injections, selector, null, this, injectionGrammar, this._scopeTable);
             }
           }
         }
       }
     }
-    if (this._injections.size() == 0) {
-      return new Injection[0];
+    this._injections = injections.toArray(NO_INJECTIONS);
+    this._initialized = true;
+  }
+
+  /**
+   * Returns the injections whose selectors match the content scopes of `states`. They only depend on
+   * the scope list, which keeps them, so they are selected once per scope list. The returned array is
+   * shared and must not be changed.
+   */
+  public Injection[] getInjections(StackElement states) {
+    if (!this._initialized) {
+      this._initialize();
+    }
+    if (this._injections.length == 0) {
+      return NO_INJECTIONS;
     }
 
-    ArrayList<Injection> result = new ArrayList<Injection>();
+    ScopeListElement scopesList = states.contentNameScopesList;
+    Injection[] result = scopesList.getInjections(this);
+    if (result != null) {
+      return result;
+    }
+    ArrayList<Injection> matched = new ArrayList<Injection>();
     for (Injection injection : this._injections) {
       if (injection.matcher.call(states)) {
-        result.add(injection);
+        matched.add(injection);
       }
     }
-    return result.toArray(new Injection[0]);
+    result = matched.isEmpty() ? NO_INJECTIONS : matched.toArray(NO_INJECTIONS);
+    scopesList.setInjections(this, result);
+    return result;
   }
 
   public Rule registerRule(Function<Integer, Rule> factory) {
@@ -645,6 +758,14 @@ public class Grammar implements IGrammar, IRuleFactoryHelper {
     return result;
   }
 
+  public CompileStats getCompileStats() {
+    return this._compileStats;
+  }
+
+  public boolean useCombinedScanners() {
+    return this._grammarRepository.useCombinedScanners();
+  }
+
   public Rule getRule(int patternId) {
     if (patternId <= 0 || patternId >= this._ruleId2desc.size())
       return null;
@@ -672,7 +793,7 @@ public class Grammar implements IGrammar, IRuleFactoryHelper {
   }
 
   public ITokenizeLineResult tokenizeLine(String lineText, StackElement prevState) {
-    TokenizeReturn r = this._tokenize(lineText, prevState, false);
+    TokenizeReturn r = this._tokenize(lineText, prevState, false, null);
 
     ITokenizeLineResult result = new ITokenizeLineResult();
 
@@ -682,43 +803,254 @@ public class Grammar implements IGrammar, IRuleFactoryHelper {
   }
 
   public ITokenizeLineResult2 tokenizeLine2(String lineText, StackElement prevState) {
-    TokenizeReturn r = this._tokenize(lineText, prevState, true);
+    TokenBuffer tokens = new TokenBuffer(16);
     ITokenizeLineResult2 result = new ITokenizeLineResult2();
-    result.tokens = r.lineTokens.getBinaryResult(r.ruleStack, r.lineLength);
-    result.ruleStack = r.ruleStack;
+    result.ruleStack = this.tokenizeLine2(lineText, prevState, tokens);
+    result.tokens = tokens.toArray();
     return result;
   }
 
-  private TokenizeReturn _tokenize(String lineText, StackElement prevState, boolean emitBinaryTokens) {
-    if (this._rootId == -1) {
-      this._rootId = RuleFactory.getCompiledRuleId(this._grammar.repository.self(), this, this._grammar.repository);
+  public StackElement tokenizeLine2(String lineText, StackElement prevState, TokenBuffer tokens) {
+    LineCache lineCache = this._lineCache;
+    if (lineCache != null) {
+      LineCache.CachedLine cached = lineCache.get(lineText, prevState);
+      if (cached != null) {
+        tokens.clear();
+        tokens.addAll(cached.tokens);
+        return cached.ruleStack;
+      }
     }
 
-    boolean isFirstLine;
-    if (prevState == null || prevState == StackElement.NULL) {
-      isFirstLine = true;
-      ScopeMetadata rawDefaultMetadata = this._scopeMetadataProvider.getDefaultMetadata();
-      ThemeTrieElementRule defaultTheme = rawDefaultMetadata.themeData[0];
-      int defaultMetadata = StackElementMetadata.set(0, rawDefaultMetadata.languageId, rawDefaultMetadata.tokenType,
-          defaultTheme.fontStyle, defaultTheme.foreground, defaultTheme.background);
+    TokenizeReturn r = this._tokenize(lineText, prevState, true, tokens);
+    r.lineTokens.finishBinaryResult(r.ruleStack, r.lineLength);
+    if (lineCache != null) {
+      lineCache.put(lineText, prevState, tokens.toArray(), r.ruleStack);
+    }
+    return r.ruleStack;
+  }
+
+  public void setLineCacheSize(int maxSize) {
+    this._lineCache = maxSize > 0 ? new LineCache(maxSize) : null;
+  }
+
+  public LineCache getLineCache() {
+    return this._lineCache;
+  }
+
+  public ITokenizeDocumentResult tokenizeDocument(CharSequence text) {
+    return this.tokenizeDocument(Utils.splitLines(text).iterator(), null);
+  }
+
+  public ITokenizeDocumentResult tokenizeDocument(Iterator<String> lines) {
+    return this.tokenizeDocument(lines, null);
+  }
 
-      String rootScopeName = this.getRule(this._rootId).getName(null, null);
-      ScopeMetadata rawRootMetadata = this._scopeMetadataProvider.getMetadataForScope(rootScopeName);
-      int rootMetadata = ScopeListElement.mergeMetadata(defaultMetadata, null, rawRootMetadata);
+  public ITokenizeDocumentResult tokenizeDocument(Iterator<String> lines, StackElement prevState) {
+    TokenBuffer lineTokens = new TokenBuffer();
+    TokenBuffer tokens = new TokenBuffer(1024);
+    int[] lineOffsets = new int[65];
+    StackElement[] ruleStacks = new StackElement[64];
+    int lineCount = 0;
 
-      ScopeListElement scopeList = new ScopeListElement(null, rootScopeName, rootMetadata);
+    while (lines.hasNext()) {
+      prevState = this.tokenizeLine2(lines.next(), prevState, lineTokens);
 
-      prevState = new StackElement(null, this._rootId, -1, null, scopeList, scopeList);
+      if (lineCount == ruleStacks.length) {
+        ruleStacks = Arrays.copyOf(ruleStacks, lineCount * 2);
+        lineOffsets = Arrays.copyOf(lineOffsets, lineCount * 2 + 1);
+      }
+      ruleStacks[lineCount] = prevState;
+      for (int i = 0, len = lineTokens.length(); i < len; i += 2) {
+        tokens.add(lineTokens.get(i), lineTokens.get(i + 1));
+      }
+      lineCount++;
+      lineOffsets[lineCount] = tokens.length();
+    }
+
+    ITokenizeDocumentResult result = new ITokenizeDocumentResult();
+    result.tokens = tokens.toArray();
+    result.lineOffsets = Arrays.copyOf(lineOffsets, lineCount + 1);
+    result.ruleStacks = Arrays.copyOf(ruleStacks, lineCount);
+    result.lineCount = lineCount;
+    return result;
+  }
+
+  /**
+   * Chunks of a document tokenized in parallel have at least this many lines.
+   */
+  private static final int MIN_CHUNK_LINE_COUNT = 1000;
+
+  /**
+   * The number of states of a generation of the interned states, see `_intern`.
+   */
+  private static final int MAX_STATE_COUNT = 100000;
+
+  public ITokenizeDocumentResult tokenizeDocument(CharSequence text, ExecutorService executor)
+      throws InterruptedException, ExecutionException {
+    final List<String> lines = Utils.splitLines(text);
+    int parallelism = executor instanceof ForkJoinPool ? ((ForkJoinPool) executor).getParallelism()
+        : Runtime.getRuntime().availableProcessors();
+    int chunkCount = Math.min(parallelism, lines.size() / MIN_CHUNK_LINE_COUNT);
+    if (chunkCount < 2) {
+      return this.tokenizeDocument(lines.iterator(), null);
+    }
+    if (!this._initialized) {
+      this._initialize();
+    }
+
+    // tokenize every chunk but the first one speculatively, from the root state
+    final int chunkLineCount = (lines.size() + chunkCount - 1) / chunkCount;
+    final StackElement[] chunkStates = new StackElement[chunkCount];
+    List<Callable<ITokenizeDocumentResult>> tasks = new ArrayList<Callable<ITokenizeDocumentResult>>(chunkCount);
+    for (int i = 0; i < chunkCount; i++) {
+      final int start = i * chunkLineCount;
+      final StackElement chunkState = i == 0 ? null : this._createRootState();
+      chunkStates[i] = chunkState;
+      tasks.add(new Callable<ITokenizeDocumentResult>() {
+        public ITokenizeDocumentResult call() {
+          int end = Math.min(lines.size(), start + chunkLineCount);
+          return tokenizeDocument(lines.subList(start, end).iterator(), chunkState);
+        }
+      });
+    }
+    List<Future<ITokenizeDocumentResult>> chunks = executor.invokeAll(tasks);
+
+    // then fix the chunks sequentially: a chunk is retokenized from the end state of the previous one,
+    // until a line ends in the same state as it did speculatively
+    TokenBuffer lineTokens = new TokenBuffer();
+    TokenBuffer tokens = new TokenBuffer(1024);
+    int[] lineOffsets = new int[lines.size() + 1];
+    StackElement[] ruleStacks = new StackElement[lines.size()];
+    int lineCount = 0;
+    StackElement prevState = null;
+    for (int i = 0; i < chunkCount; i++) {
+      ITokenizeDocumentResult chunk = chunks.get(i).get();
+      boolean converged = i == 0 || prevState.equals(chunkStates[i]);
+      for (int line = 0; line < chunk.lineCount; line++) {
+        if (converged) {
+          prevState = chunk.ruleStacks[line];
+          for (int j = chunk.lineOffsets[line], end = chunk.lineOffsets[line + 1]; j < end; j += 2) {
+            tokens.add(chunk.tokens[j], chunk.tokens[j + 1]);
+          }
+        } else {
+          prevState = this.tokenizeLine2(lines.get(lineCount), prevState, lineTokens);
+          converged = prevState.equals(chunk.ruleStacks[line]);
+          for (int j = 0, len = lineTokens.length(); j < len; j += 2) {
+            tokens.add(lineTokens.get(j), lineTokens.get(j + 1));
+          }
+        }
+        ruleStacks[lineCount] = prevState;
+        lineCount++;
+        lineOffsets[lineCount] = tokens.length();
+      }
+    }
+
+    ITokenizeDocumentResult result = new ITokenizeDocumentResult();
+    result.tokens = tokens.toArray();
+    result.lineOffsets = lineOffsets;
+    result.ruleStacks = ruleStacks;
+    result.lineCount = lineCount;
+    return result;
+  }
+
+  /**
+   * The state before the first line, without a previous line.
+   */
+  private StackElement _createRootState() {
+    ScopeListElement scopeList = this._rootScopeList;
+    if (scopeList == null) {
+      scopeList = this._createRootScopeList();
+    }
+    return this._intern(new StackElement(null, this._rootId, null, scopeList, scopeList));
+  }
+
+  private synchronized ScopeListElement _createRootScopeList() {
+    if (this._rootScopeList != null) {
+      return this._rootScopeList;
+    }
+    ScopeMetadata rawDefaultMetadata = this._scopeMetadataProvider.getDefaultMetadata();
+    ThemeTrieElementRule defaultTheme = rawDefaultMetadata.themeData[0];
+    int defaultMetadata = StackElementMetadata.set(0, rawDefaultMetadata.languageId, rawDefaultMetadata.tokenType,
+        defaultTheme.fontStyle, defaultTheme.foreground, defaultTheme.background);
+
+    int rootScopeId = this.getRule(this._rootId).getNameScopeId(this, null, null);
+    ScopeMetadata rawRootMetadata = this._scopeMetadataProvider.getMetadataForScope(rootScopeId);
+    int rootMetadata = ScopeListElement.mergeMetadata(defaultMetadata, null, rawRootMetadata);
+
+    String rootScopeName = rootScopeId != ScopeTable.NO_SCOPE ? this._scopeTable.getName(rootScopeId) : null;
+    this._rootScopeList = new ScopeListElement(null, rootScopeId, rootScopeName, rootMetadata);
+    return this._rootScopeList;
+  }
+
+  /**
+   * Returns the interned state equal to `state`, so that the states at the end of the lines are
+   * shared. Only the top of the stack pushed on the last line is usually not interned yet.
+   *
+   * The states are interned by generation: once the current one holds `MAX_STATE_COUNT` states, it
+   * becomes the previous one and the one before is dropped. A state of the previous generation that is
+   * interned again moves to the current one, so the states still in use (kept by a
+   * `TokenizedDocument` or the line cache, and tokenized again) keep their identity, while at most
+   * twice `MAX_STATE_COUNT` states are kept.
+   */
+  private StackElement _intern(StackElement state) {
+    if (state.interned) {
+      return state;
+    }
+    StackElement parent = state.parent != null ? this._intern(state.parent) : null;
+    if (parent != state.parent) {
+      state = parent.push(state.ruleId, state.endRule, state.nameScopesList, state.contentNameScopesList);
+    }
+    ConcurrentHashMap<StackElement, StackElement> states = this._states;
+    StackElement existing = states.get(state);
+    if (existing != null) {
+      return existing;
+    }
+    ConcurrentHashMap<StackElement, StackElement> oldStates = this._oldStates;
+    StackElement interned = oldStates != null ? oldStates.get(state) : null;
+    if (interned == null) {
+      interned = state;
+    }
+    if (states.size() >= MAX_STATE_COUNT) {
+      states = this._startStateGeneration(states);
+    }
+    existing = states.putIfAbsent(interned, interned);
+    if (existing != null) {
+      return existing;
+    }
+    interned.interned = true;
+    return interned;
+  }
+
+  private synchronized ConcurrentHashMap<StackElement, StackElement> _startStateGeneration(
+      ConcurrentHashMap<StackElement, StackElement> full) {
+    if (this._states == full) {
+      this._oldStates = full;
+      this._states = new ConcurrentHashMap<StackElement, StackElement>();
+    }
+    return this._states;
+  }
+
+  private TokenizeReturn _tokenize(String lineText, StackElement prevState, boolean emitBinaryTokens,
+      TokenBuffer binaryTokens) {
+    if (!this._initialized) {
+      this._initialize();
+    }
+
+    boolean isFirstLine;
+    if (prevState == null || prevState == StackElement.NULL) {
+      isFirstLine = true;
+      prevState = this._createRootState();
     } else {
       isFirstLine = false;
-      prevState.reset();
     }
 
     lineText = lineText + '\n';
-    String onigLineText = lineText;
+    OnigString onigLineText = new OnigString(lineText);
     int lineLength = lineText.length();
-    LineTokens lineTokens = new LineTokens(emitBinaryTokens, lineText);
-    StackElement nextState = _tokenizeString(this, onigLineText, isFirstLine, 0, prevState, lineTokens);
+    LineTokens lineTokens = new LineTokens(emitBinaryTokens, lineText, binaryTokens);
+    StackElement nextState = _tokenizeString(this, onigLineText, isFirstLine, 0, prevState, lineTokens,
+        new EnterPositions());
+    nextState = this._intern(nextState);
 
     TokenizeReturn result = new TokenizeReturn();
     result.lineLength = lineLength;
@@ -771,6 +1103,35 @@ class IMatchInjectionsResult extends IMatchResult {
   }
 }
 
+/**
+ * The positions on the current line where the states of the stack were pushed, by depth, -1 for the
+ * states pushed on previous lines. Used to detect endless loops.
+ */
+class EnterPositions {
+  private int[] _positions;
+
+  public EnterPositions() {
+    this._positions = new int[0];
+  }
+
+  public EnterPositions(EnterPositions other) {
+    this._positions = other._positions.clone();
+  }
+
+  public int get(int depth) {
+    return depth < this._positions.length ? this._positions[depth] : -1;
+  }
+
+  public void set(int depth, int position) {
+    if (depth >= this._positions.length) {
+      int length = this._positions.length;
+      this._positions = Arrays.copyOf(this._positions, Math.max(depth + 1, length * 2));
+      Arrays.fill(this._positions, length, this._positions.length, -1);
+    }
+    this._positions[depth] = position;
+  }
+}
+
 class TokenizeReturn {
   public int lineLength;
   public LineTokens lineTokens;
@@ -791,13 +1152,16 @@ class LineTokens {
   /**
    * used only if `_emitBinaryTokens` is true.
    */
-  private final ArrayList<Integer> _binaryTokens;
+  private final TokenBuffer _binaryTokens;
 
   private int _lastTokenEndIndex;
 
   public static boolean IN_DEBUG_MODE = false;
 
-  public LineTokens(boolean emitBinaryTokens, String lineText) {
+  /**
+   * `binaryTokens` is cleared and receives the tokens if `emitBinaryTokens` is true.
+   */
+  public LineTokens(boolean emitBinaryTokens, String lineText, TokenBuffer binaryTokens) {
     this._emitBinaryTokens = emitBinaryTokens;
     if (IN_DEBUG_MODE) {
       this._lineText = lineText;
@@ -806,7 +1170,8 @@ class LineTokens {
     }
 
     if (this._emitBinaryTokens) {
-      this._binaryTokens = new ArrayList<Integer>();
+      this._binaryTokens = binaryTokens;
+      this._binaryTokens.clear();
       this._tokens = null;
     } else {
       this._binaryTokens = null;
@@ -826,14 +1191,14 @@ class LineTokens {
 
     if (this._emitBinaryTokens) {
       int metadata = scopesList.metadata;
-      if (this._binaryTokens.size() > 0 && this._binaryTokens.get(this._binaryTokens.size() - 1) == metadata) {
+      int length = this._binaryTokens.length();
+      if (length > 0 && this._binaryTokens.get(length - 1) == metadata) {
         // no need to push a token with the same metadata
         this._lastTokenEndIndex = endIndex;
         return;
       }
 
-      this._binaryTokens.add(this._lastTokenEndIndex);
-      this._binaryTokens.add(metadata);
+      this._binaryTokens.add(this._lastTokenEndIndex, metadata);
 
       this._lastTokenEndIndex = endIndex;
       return;
@@ -870,23 +1235,24 @@ class LineTokens {
   }
 
   public int[] getBinaryResult(StackElement stack, int lineLength) {
-    if (this._binaryTokens.size() > 0 && this._binaryTokens.get(this._binaryTokens.size() - 2) == lineLength - 1) {
+    this.finishBinaryResult(stack, lineLength);
+    return this._binaryTokens.toArray();
+  }
+
+  /**
+   * Leaves the final binary tokens of the line in the buffer.
+   */
+  public void finishBinaryResult(StackElement stack, int lineLength) {
+    int length = this._binaryTokens.length();
+    if (length > 0 && this._binaryTokens.get(length - 2) == lineLength - 1) {
       // pop produced token for newline
-      this._binaryTokens.remove(this._binaryTokens.size() - 1);
-      this._binaryTokens.remove(this._binaryTokens.size() - 1);
+      this._binaryTokens.truncate(length - 2);
     }
 
-    if (this._binaryTokens.size() == 0) {
+    if (this._binaryTokens.length() == 0) {
       this._lastTokenEndIndex = -1;
       this.produce(stack, lineLength);
-      this._binaryTokens.set(this._binaryTokens.size() - 2, 0);
+      this._binaryTokens.set(this._binaryTokens.length() - 2, 0);
     }
-
-    int[] result = new int[this._binaryTokens.size()];
-    for (int i = 0, len = this._binaryTokens.size(); i < len; i++) {
-      result[i] = this._binaryTokens.get(i);
-    }
-
-    return result;
   }
 }
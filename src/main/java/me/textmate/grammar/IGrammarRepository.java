@@ -6,4 +6,15 @@ public interface IGrammarRepository {
   IRawGrammar lookup(String scopeName);
 
   String[] injections(String scopeName);
+
+  /**
+   * The ids of the scope names, shared by the grammars of the repository.
+   */
+  ScopeTable getScopeTable();
+
+  /**
+   * Whether the grammars of the repository search the patterns of a rule in one pass, see
+   * `RegistryOptions.combinedScanners`.
+   */
+  boolean useCombinedScanners();
 }
\ No newline at end of file
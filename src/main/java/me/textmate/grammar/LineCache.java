@@ -0,0 +1,116 @@
+package me.textmate.grammar;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import me.textmate.main.ILineCacheStats;
+
+/**
+ * The binary tokens and the end state of the last tokenized lines, by line text and state before the
+ * line, see `IGrammar.setLineCacheSize`. The least recently used lines are evicted first.
+ *
+ * The states before the lines are usually the interned ones, so looking a line up is mostly hashing
+ * its text.
+ */
+public class LineCache implements ILineCacheStats {
+  private final int _maxSize;
+  private final LinkedHashMap<Key, CachedLine> _entries;
+  private long _hits;
+  private long _misses;
+
+  public LineCache(final int maxSize) {
+    this._maxSize = maxSize;
+    this._entries = new LinkedHashMap<Key, CachedLine>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, CachedLine> eldest) {
+        return this.size() > maxSize;
+      }
+    };
+  }
+
+  public int getMaxSize() {
+    return this._maxSize;
+  }
+
+  public synchronized int size() {
+    return this._entries.size();
+  }
+
+  public synchronized long getHits() {
+    return this._hits;
+  }
+
+  public synchronized long getMisses() {
+    return this._misses;
+  }
+
+  public synchronized double getHitRate() {
+    long lookups = this._hits + this._misses;
+    return lookups == 0 ? 0 : (double) this._hits / lookups;
+  }
+
+  /**
+   * Removes the lines and resets the counters.
+   */
+  public synchronized void clear() {
+    this._entries.clear();
+    this._hits = 0;
+    this._misses = 0;
+  }
+
+  synchronized CachedLine get(String lineText, StackElement prevState) {
+    CachedLine entry = this._entries.get(new Key(lineText, prevState));
+    if (entry != null) {
+      this._hits++;
+    } else {
+      this._misses++;
+    }
+    return entry;
+  }
+
+  synchronized void put(String lineText, StackElement prevState, int[] tokens, StackElement ruleStack) {
+    this._entries.put(new Key(lineText, prevState), new CachedLine(tokens, ruleStack));
+  }
+
+  static class CachedLine {
+    final int[] tokens;
+    final StackElement ruleStack;
+
+    CachedLine(int[] tokens, StackElement ruleStack) {
+      this.tokens = tokens;
+      this.ruleStack = ruleStack;
+    }
+  }
+
+  private static class Key {
+    private final String _lineText;
+    /**
+     * null before the first line.
+     */
+    private final StackElement _prevState;
+    private final int _hash;
+
+    Key(String lineText, StackElement prevState) {
+      this._lineText = lineText;
+      this._prevState = prevState == StackElement.NULL ? null : prevState;
+      this._hash = 31 * lineText.hashCode() + (this._prevState != null ? this._prevState.hashCode() : 0);
+    }
+
+    @Override
+    public int hashCode() {
+      return this._hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return this._hash == key._hash && this._lineText.equals(key._lineText)
+          && (this._prevState != null ? this._prevState.equals(key._prevState) : key._prevState == null);
+    }
+  }
+}
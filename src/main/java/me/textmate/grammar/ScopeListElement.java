@@ -7,17 +7,43 @@ import java.util.List;
 import me.textmate.theme.FontStyle;
 import me.textmate.theme.ThemeTrieElementRule;
 
+/**
+ * Scope lists are hash-consed: `push` returns the same instance for the same scope pushed on the
+ * same list, so the lists built from the same root by a grammar are usually equal only if they are the
+ * same object.
+ *
+ * Scopes are pushed by id, see {@link ScopeTable}: the names are only read to generate `IToken.scopes`.
+ */
 public class ScopeListElement {
 	// _scopeListElementBrand: void;
 
+	/**
+	 * Names built from captures (`$1`) can produce any number of scopes: past this many distinct pushed
+	 * scopes, a list is not interned anymore.
+	 */
+	private static final int MAX_PUSHED = 1024;
+
 	public final ScopeListElement parent;
+	public final int scopeId;
 	public final String scope;
 	public final int metadata;
+	/**
+	 * Pushed scope id => the scope list `push` returned for it, replaced on every new pushed scope.
+	 */
+	private volatile PushedTable _pushed = PushedTable.EMPTY;
+	/**
+	 * The injections selected for this list, see `Grammar.getInjections`, null until then.
+	 */
+	private volatile InjectionSet _injections;
+
+	private final int _hash;
 
-	public ScopeListElement(ScopeListElement parent, String scope, int metadata) {
+	public ScopeListElement(ScopeListElement parent, int scopeId, String scope, int metadata) {
 		this.parent = parent;
+		this.scopeId = scopeId;
 		this.scope = scope;
 		this.metadata = metadata;
+		this._hash = 31 * (31 * (parent != null ? parent._hash : 0) + (scope != null ? scope.hashCode() : 0)) + metadata;
 	}
 
 	private static boolean _equals(ScopeListElement a, ScopeListElement b) {
@@ -26,7 +52,8 @@ public class ScopeListElement {
 				return true;
 			}
 
-			if (a.scope != b.scope || a.metadata != b.metadata) {
+			if (a._hash != b._hash || a.metadata != b.metadata
+					|| (a.scope != null ? !a.scope.equals(b.scope) : b.scope != null)) {
 				return false;
 			}
 
@@ -48,36 +75,83 @@ public class ScopeListElement {
 	}
 
 	public boolean equals(ScopeListElement other) {
+		if (other == null) {
+			return false;
+		}
 		return ScopeListElement._equals(this, other);
 	}
 
-	private static boolean _matchesScope(String scope, String selector, String selectorWithDot) {
-		return (selector == scope || scope.substring(0, selectorWithDot.length()) == selectorWithDot);
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof ScopeListElement && this.equals((ScopeListElement) other);
 	}
 
-	private static boolean _matches(ScopeListElement target, String[] parentScopes) {
-		if (parentScopes == null) {
-			return true;
+	@Override
+	public int hashCode() {
+		return this._hash;
+	}
+
+	private static boolean _matches(ScopeListElement target, int selectorId, ScopeTable scopeTable) {
+		if (target.scopeId == ScopeTable.UNINTERNED) {
+			return scopeTable.matches(target.scope, selectorId);
 		}
+		return scopeTable.matches(target.scopeId, selectorId);
+	}
 
-		int len = parentScopes.length;
-		int index = 0;
-		String selector = parentScopes[index];
-		String selectorWithDot = selector + ".";
+	/**
+	 * Returns the index of the first of `parentScopesIds` whose scopes all match, in order, scopes of
+	 * `target` and its parents, -1 if none does. Like `matchesSelector`, each selector is matched in a
+	 * walk up the list that keeps no state besides its position, so nothing is allocated: the selectors
+	 * are sorted from the most specific one and the walk stops at the first that matches.
+	 */
+	private static int _matchParentScopes(ScopeListElement target, int[][] parentScopesIds, ScopeTable scopeTable) {
+		for (int i = 0; i < parentScopesIds.length; i++) {
+			if (ScopeListElement._matchesParentScopes(target, parentScopesIds[i], scopeTable)) {
+				return i;
+			}
+		}
+		return -1;
+	}
 
-		while (target != null) {
-			if (_matchesScope(target.scope, selector, selectorWithDot)) {
+	/**
+	 * Returns true if the scopes of `selector`, from the nearest parent, match scopes of `target` and its
+	 * parents, one scope of the list for each scope of the selector.
+	 */
+	private static boolean _matchesParentScopes(ScopeListElement target, int[] selector, ScopeTable scopeTable) {
+		int index = 0;
+		while (target != null && index < selector.length) {
+			if (ScopeListElement._matches(target, selector[index], scopeTable)) {
 				index++;
-				if (index == len) {
-					return true;
-				}
-				selector = parentScopes[index];
-				selectorWithDot = selector + '.';
 			}
 			target = target.parent;
 		}
+		return index == selector.length;
+	}
+
+	/**
+	 * Returns true if the scopes of `selectorIds` match, in order from the root, scopes of `scopesList`
+	 * and its parents, like an injection selector (`source.js string`). A scope can match several
+	 * consecutive selector scopes. The list is walked up in place: the selector is matched from its last
+	 * scope.
+	 */
+	static boolean matchesSelector(ScopeListElement scopesList, int[] selectorIds, ScopeTable scopeTable) {
+		int remaining = selectorIds.length;
+		while (scopesList != null && remaining > 0) {
+			while (remaining > 0 && ScopeListElement._matches(scopesList, selectorIds[remaining - 1], scopeTable)) {
+				remaining--;
+			}
+			scopesList = scopesList.parent;
+		}
+		return remaining == 0;
+	}
 
-		return false;
+	Injection[] getInjections(Grammar grammar) {
+		InjectionSet injections = this._injections;
+		return injections != null && injections.grammar == grammar ? injections.injections : null;
+	}
+
+	void setInjections(Grammar grammar, Injection[] injections) {
+		this._injections = new InjectionSet(grammar, injections);
 	}
 
 	public static int mergeMetadata(int metadata, ScopeListElement scopesList, ScopeMetadata source) {
@@ -89,43 +163,150 @@ public class ScopeListElement {
 		int foreground = 0;
 		int background = 0;
 
-		if (source.themeData != null) {
-			// Find the first themeData that matches
-			for (int i = 0, len = source.themeData.length; i < len; i++) {
-				ThemeTrieElementRule themeData = source.themeData[i];
-
-				if (_matches(scopesList, themeData.parentScopes)) {
-					fontStyle = themeData.fontStyle;
-					foreground = themeData.foreground;
-					background = themeData.background;
-					break;
-				}
+		// Find the first themeData that matches: only the rules with parent scopes before the first rule
+		// without any have to be matched
+		ThemeTrieElementRule themeData = source.defaultRule;
+		if (source.parentScopesRules.length > 0) {
+			int matched = _matchParentScopes(scopesList, source.parentScopesIds, source.scopeTable);
+			if (matched != -1) {
+				themeData = source.parentScopesRules[matched];
 			}
 		}
+		if (themeData != null) {
+			fontStyle = themeData.fontStyle;
+			foreground = themeData.foreground;
+			background = themeData.background;
+		}
 
 		return StackElementMetadata.set(metadata, source.languageId, source.tokenType, fontStyle, foreground, background);
 	}
 
-	private static ScopeListElement _push(ScopeListElement target, Grammar grammar, String[] scopes) {
-		for (int i = 0, len = scopes.length; i < len; i++) {
-			String scope = scopes[i];
-			ScopeMetadata rawMetadata = grammar.getMetadataForScope(scope);
-			int metadata = ScopeListElement.mergeMetadata(target.metadata, target, rawMetadata);
-			target = new ScopeListElement(target, scope, metadata);
+	/**
+	 * Pushes `scope`, a name built from captures, see `ScopeTable.getDynamicId`. Once the scope table is
+	 * full, a new name is pushed without an id and the returned list is not interned.
+	 */
+	public ScopeListElement push(Grammar grammar, String scope) {
+		int scopeId = grammar.getScopeTable().getDynamicId(scope);
+		if (scopeId != ScopeTable.UNINTERNED) {
+			return this.push(grammar, scopeId);
 		}
-		return target;
+		if (scope.indexOf(' ') >= 0) {
+			// there are multiple scopes to push, some of them may have an id
+			ScopeListElement result = this;
+			for (String part : scope.split(" ")) {
+				result = result.push(grammar, part);
+			}
+			return result;
+		}
+		ScopeMetadata rawMetadata = grammar.getMetadataForUninternedScope(scope);
+		int metadata = ScopeListElement.mergeMetadata(this.metadata, this, rawMetadata);
+		return new ScopeListElement(this, ScopeTable.UNINTERNED, scope, metadata);
 	}
 
-	public ScopeListElement push(Grammar grammar, String scope) {
-		if (scope == null) {
+	public ScopeListElement push(Grammar grammar, int scopeId) {
+		if (scopeId == ScopeTable.NO_SCOPE) {
 			return this;
 		}
-		if (scope.indexOf(" ") >= 0) {
+		ScopeListElement result = this._pushed.get(scopeId);
+		if (result != null) {
+			return result;
+		}
+
+		ScopeTable scopeTable = grammar.getScopeTable();
+		int[] scopeIds = scopeTable.getScopeIds(scopeId);
+		if (scopeIds != null) {
 			// there are multiple scopes to push
-			return ScopeListElement._push(this, grammar, scope.split(" "));
+			result = this;
+			for (int i = 0; i < scopeIds.length; i++) {
+				result = result.push(grammar, scopeIds[i]);
+			}
+		} else {
+			// there is a single scope to push
+			ScopeMetadata rawMetadata = grammar.getMetadataForScope(scopeId);
+			int metadata = ScopeListElement.mergeMetadata(this.metadata, this, rawMetadata);
+			result = new ScopeListElement(this, scopeId, scopeTable.getName(scopeId), metadata);
+		}
+		return this._addPushed(scopeId, result);
+	}
+
+	private synchronized ScopeListElement _addPushed(int scopeId, ScopeListElement result) {
+		PushedTable pushed = this._pushed;
+		ScopeListElement existing = pushed.get(scopeId);
+		if (existing != null) {
+			return existing;
+		}
+		if (pushed.size < MAX_PUSHED) {
+			this._pushed = pushed.add(scopeId, result);
+		}
+		return result;
+	}
+
+	/**
+	 * An immutable open addressing table of the lists pushed on a list, by scope id. The lookups do not
+	 * lock; a new pushed scope copies the table, which only happens the first time it is pushed.
+	 */
+	private static class PushedTable {
+		static final PushedTable EMPTY = new PushedTable(new int[0], new ScopeListElement[0], 0);
+
+		private final int[] _scopeIds;
+		private final ScopeListElement[] _lists;
+		final int size;
+
+		private PushedTable(int[] scopeIds, ScopeListElement[] lists, int size) {
+			this._scopeIds = scopeIds;
+			this._lists = lists;
+			this.size = size;
+		}
+
+		ScopeListElement get(int scopeId) {
+			ScopeListElement[] lists = this._lists;
+			if (lists.length == 0) {
+				return null;
+			}
+			int mask = lists.length - 1;
+			for (int i = scopeId & mask;; i = (i + 1) & mask) {
+				ScopeListElement list = lists[i];
+				if (list == null || this._scopeIds[i] == scopeId) {
+					return list;
+				}
+			}
+		}
+
+		PushedTable add(int scopeId, ScopeListElement list) {
+			int capacity = 4;
+			while (capacity < (this.size + 1) * 2) {
+				capacity *= 2;
+			}
+			int[] scopeIds = new int[capacity];
+			ScopeListElement[] lists = new ScopeListElement[capacity];
+			for (int i = 0; i < this._lists.length; i++) {
+				if (this._lists[i] != null) {
+					PushedTable._put(scopeIds, lists, this._scopeIds[i], this._lists[i]);
+				}
+			}
+			PushedTable._put(scopeIds, lists, scopeId, list);
+			return new PushedTable(scopeIds, lists, this.size + 1);
+		}
+
+		private static void _put(int[] scopeIds, ScopeListElement[] lists, int scopeId, ScopeListElement list) {
+			int mask = lists.length - 1;
+			int i = scopeId & mask;
+			while (lists[i] != null) {
+				i = (i + 1) & mask;
+			}
+			scopeIds[i] = scopeId;
+			lists[i] = list;
+		}
+	}
+
+	private static class InjectionSet {
+		final Grammar grammar;
+		final Injection[] injections;
+
+		InjectionSet(Grammar grammar, Injection[] injections) {
+			this.grammar = grammar;
+			this.injections = injections;
 		}
-		// there is a single scope to push
-		return ScopeListElement._push(this, grammar, new String[] { scope });
 	}
 
 	private static String[] _generateScopes(ScopeListElement scopesList) {
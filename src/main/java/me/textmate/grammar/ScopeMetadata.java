@@ -2,9 +2,7 @@ package me.textmate.grammar;
 
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -14,32 +12,72 @@ import me.textmate.main.StandardTokenType;
 import me.textmate.theme.ThemeTrieElementRule;
 
 public class ScopeMetadata {
+  private static final ThemeTrieElementRule[] NO_RULES = new ThemeTrieElementRule[0];
+
   public final String scopeName;
   public final int languageId;
   public final int tokenType;
   public final ThemeTrieElementRule[] themeData;
+  /**
+   * The rules of `themeData` before the first one without parent scopes, which have to be matched
+   * against the parent scopes, and that first rule, which always matches (or null). A scope without
+   * parent scope rules merges into any parent metadata without looking at the parent scopes.
+   */
+  final ThemeTrieElementRule[] parentScopesRules;
+  final ThemeTrieElementRule defaultRule;
+  /**
+   * The scope ids of the parent scopes of `parentScopesRules`, and the table they come from.
+   */
+  final int[][] parentScopesIds;
+  final ScopeTable scopeTable;
 
-  public ScopeMetadata(String scopeName, int languageId, int tokenType, ThemeTrieElementRule[] themeData) {
+  public ScopeMetadata(String scopeName, int languageId, int tokenType, ThemeTrieElementRule[] themeData,
+      ScopeTable scopeTable) {
     this.scopeName = scopeName;
     this.languageId = languageId;
     this.tokenType = tokenType;
     this.themeData = themeData;
+    this.scopeTable = scopeTable;
+
+    int i = 0;
+    if (themeData != null) {
+      while (i < themeData.length && themeData[i].parentScopes != null) {
+        i++;
+      }
+    }
+    this.parentScopesRules = i == 0 ? NO_RULES : Arrays.copyOf(themeData, i);
+    this.defaultRule = themeData != null && i < themeData.length ? themeData[i] : null;
+
+    this.parentScopesIds = new int[i][];
+    for (int j = 0; j < i; j++) {
+      String[] parentScopes = themeData[j].parentScopes;
+      this.parentScopesIds[j] = new int[parentScopes.length];
+      for (int k = 0; k < parentScopes.length; k++) {
+        this.parentScopesIds[j][k] = scopeTable.getId(parentScopes[k]);
+      }
+    }
   }
 }
 
+/**
+ * The metadata of the scopes for the current theme. The lookups do not lock, and a theme change swaps
+ * the whole cache at once: a tokenization that is running when the theme changes keeps the cache it
+ * started with.
+ */
 class ScopeMetadataProvider {
 
   private final int _initialLanguage;
   private final IThemeProvider _themeProvider;
-  private Map<String, ScopeMetadata> _cache;
-  private ScopeMetadata _defaultMetaData;
+  private final ScopeTable _scopeTable;
+  private volatile ThemeMetadata _themeMetadata;
   private final IEmbeddedLanguagesMap _embeddedLanguages;
   private final Pattern _embeddedLanguagesRegex;
 
-  public ScopeMetadataProvider(int initialLanguage, IThemeProvider themeProvider,
+  public ScopeMetadataProvider(int initialLanguage, IThemeProvider themeProvider, ScopeTable scopeTable,
       IEmbeddedLanguagesMap embeddedLanguages) {
     this._initialLanguage = initialLanguage;
     this._themeProvider = themeProvider;
+    this._scopeTable = scopeTable;
     this.onDidChangeTheme();
 
     // embeddedLanguages handling
@@ -76,39 +114,50 @@ class ScopeMetadataProvider {
   }
 
   public void onDidChangeTheme() {
-    this._cache = new HashMap<String, ScopeMetadata>();
-    this._defaultMetaData = new ScopeMetadata("", this._initialLanguage, StandardTokenType.Other,
-        new ThemeTrieElementRule[] { this._themeProvider.getDefaults() });
+    this._themeMetadata = new ThemeMetadata(new ScopeMetadata("", this._initialLanguage, StandardTokenType.Other,
+        new ThemeTrieElementRule[] { this._themeProvider.getDefaults() }, this._scopeTable));
   }
 
   public ScopeMetadata getDefaultMetadata() {
-    return this._defaultMetaData;
+    return this._themeMetadata.defaultMetadata;
   }
 
   /**
    * Escapes regular expression characters in a given string
    */
-  private static ScopeMetadata _NULL_SCOPE_METADATA = new ScopeMetadata("", 0, 0, null);
+  private static ScopeMetadata _NULL_SCOPE_METADATA = new ScopeMetadata("", 0, 0, null, null);
 
   public ScopeMetadata getMetadataForScope(String scopeName) {
-    if (scopeName == null) {
+    return this.getMetadataForScope(this._scopeTable.getId(scopeName));
+  }
+
+  public ScopeMetadata getMetadataForScope(int scopeId) {
+    if (scopeId == ScopeTable.NO_SCOPE) {
       return ScopeMetadataProvider._NULL_SCOPE_METADATA;
     }
-    ScopeMetadata value = this._cache.get(scopeName);
+    ThemeMetadata themeMetadata = this._themeMetadata;
+    ScopeMetadata value = themeMetadata.get(scopeId);
     if (value != null) {
       return value;
     }
-    value = this._doGetMetadataForScope(scopeName);
-    this._cache.put(scopeName, value);
+    value = this._doGetMetadataForScope(this._scopeTable.getName(scopeId));
+    themeMetadata.put(scopeId, value);
     return value;
   }
 
+  /**
+   * Returns the metadata of a scope without an id, see `ScopeTable.UNINTERNED`. It is not kept.
+   */
+  public ScopeMetadata getMetadataForUninternedScope(String scopeName) {
+    return this._doGetMetadataForScope(scopeName);
+  }
+
   private ScopeMetadata _doGetMetadataForScope(String scopeName) {
     int languageId = this._scopeToLanguage(scopeName);
     int standardTokenType = ScopeMetadataProvider._toStandardTokenType(scopeName);
     ThemeTrieElementRule[] themeData = this._themeProvider.themeMatch(scopeName);
 
-    return new ScopeMetadata(scopeName, languageId, standardTokenType, themeData);
+    return new ScopeMetadata(scopeName, languageId, standardTokenType, themeData, this._scopeTable);
   }
 
   /**
@@ -125,7 +174,7 @@ class ScopeMetadataProvider {
     }
 
     Matcher m = this._embeddedLanguagesRegex.matcher(scope);
-    if (m == null) {
+    if (!m.find()) {
       // no scopes matched
       return 0;
     }
@@ -155,4 +204,33 @@ class ScopeMetadataProvider {
     }
     throw new Error("Unexpected match for standard token type!");
   }
+
+  /**
+   * The metadata of the scopes for one theme, by scope id. The array grows by copy, a lookup that
+   * misses an entry another thread just added computes it again. It is at most as large as the scope
+   * table, whose growth is bounded, see {@link ScopeTable}.
+   */
+  private static class ThemeMetadata {
+    final ScopeMetadata defaultMetadata;
+    private volatile ScopeMetadata[] _byScopeId;
+
+    ThemeMetadata(ScopeMetadata defaultMetadata) {
+      this.defaultMetadata = defaultMetadata;
+      this._byScopeId = new ScopeMetadata[256];
+    }
+
+    ScopeMetadata get(int scopeId) {
+      ScopeMetadata[] byScopeId = this._byScopeId;
+      return scopeId < byScopeId.length ? byScopeId[scopeId] : null;
+    }
+
+    synchronized void put(int scopeId, ScopeMetadata value) {
+      ScopeMetadata[] byScopeId = this._byScopeId;
+      if (scopeId >= byScopeId.length) {
+        byScopeId = Arrays.copyOf(byScopeId, Math.max(scopeId + 1, byScopeId.length * 2));
+      }
+      byScopeId[scopeId] = value;
+      this._byScopeId = byScopeId;
+    }
+  }
 }
\ No newline at end of file
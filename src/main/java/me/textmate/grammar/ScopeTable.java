@@ -0,0 +1,186 @@
+package me.textmate.grammar;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The ids of the scope names of a registry. A name gets its id the first time it is looked up, and
+ * keeps it: the tokenizer pushes ids, and the metadata of a scope is found by id.
+ *
+ * A name of several scopes separated by spaces (`meta.tag string.quoted`) has its own id, and the ids
+ * of its scopes, see `getScopeIds`. A single scope has the ids of its prefixes, see `getPrefixIds`.
+ *
+ * Ids are never removed, so the table (and the metadata of every theme, by id) only grows. The names of
+ * the grammars, themes and selectors are a bounded set, but names built from captures
+ * (`entity.name.tag.$1`) depend on the documents: they only get ids while fewer than
+ * `MAX_DYNAMIC_SCOPES` such names were added, see `getDynamicId`. Past that, a new one is pushed by
+ * name, without an id.
+ */
+public class ScopeTable {
+  /**
+   * The id of a missing (null) scope name.
+   */
+  public static final int NO_SCOPE = -1;
+  /**
+   * The id of a scope name built from captures once the table is full, see `getDynamicId`.
+   */
+  public static final int UNINTERNED = -2;
+  /**
+   * The number of ids the names built from captures can add to a table.
+   */
+  public static final int MAX_DYNAMIC_SCOPES = 4096;
+
+  private final ConcurrentHashMap<String, Integer> _ids;
+  private volatile String[] _names;
+  private volatile int[][] _scopeIds;
+  private volatile int[][] _prefixIds;
+  private int _size;
+  private int _dynamicSize;
+
+  public ScopeTable() {
+    this._ids = new ConcurrentHashMap<String, Integer>();
+    this._names = new String[256];
+    this._scopeIds = new int[256][];
+    this._prefixIds = new int[256][];
+    this._size = 0;
+  }
+
+  /**
+   * Returns the id of `scopeName`, or `NO_SCOPE` if it is null.
+   */
+  public int getId(String scopeName) {
+    if (scopeName == null) {
+      return NO_SCOPE;
+    }
+    Integer id = this._ids.get(scopeName);
+    if (id != null) {
+      return id;
+    }
+    return this._add(scopeName);
+  }
+
+  /**
+   * Returns the id of `scopeName`, a name built from captures: like `getId`, but a new name only gets an
+   * id while the names built from captures added less than `MAX_DYNAMIC_SCOPES` ids, and `UNINTERNED`
+   * after.
+   */
+  public int getDynamicId(String scopeName) {
+    if (scopeName == null) {
+      return NO_SCOPE;
+    }
+    Integer id = this._ids.get(scopeName);
+    if (id != null) {
+      return id;
+    }
+    synchronized (this) {
+      if (this._dynamicSize >= MAX_DYNAMIC_SCOPES) {
+        id = this._ids.get(scopeName);
+        return id != null ? id : UNINTERNED;
+      }
+      int size = this._size;
+      int result = this._add(scopeName);
+      this._dynamicSize += this._size - size;
+      return result;
+    }
+  }
+
+  private synchronized int _add(String scopeName) {
+    Integer existing = this._ids.get(scopeName);
+    if (existing != null) {
+      return existing;
+    }
+
+    int[] scopeIds = null;
+    int[] prefixIds = null;
+    if (scopeName.indexOf(' ') >= 0) {
+      String[] scopes = scopeName.split(" ");
+      scopeIds = new int[scopes.length];
+      for (int i = 0; i < scopes.length; i++) {
+        scopeIds[i] = this.getId(scopes[i]);
+      }
+    } else {
+      int prefixCount = 0;
+      for (int i = 1; i < scopeName.length(); i++) {
+        if (scopeName.charAt(i) == '.') {
+          prefixCount++;
+        }
+      }
+      if (prefixCount > 0) {
+        prefixIds = new int[prefixCount];
+        prefixCount = 0;
+        for (int i = 1; i < scopeName.length(); i++) {
+          if (scopeName.charAt(i) == '.') {
+            prefixIds[prefixCount++] = this.getId(scopeName.substring(0, i));
+          }
+        }
+      }
+    }
+
+    int id = this._size++;
+    if (id == this._names.length) {
+      this._scopeIds = Arrays.copyOf(this._scopeIds, id * 2);
+      this._prefixIds = Arrays.copyOf(this._prefixIds, id * 2);
+      this._names = Arrays.copyOf(this._names, id * 2);
+    }
+    this._scopeIds[id] = scopeIds;
+    this._prefixIds[id] = prefixIds;
+    this._names[id] = scopeName;
+    // published last: a thread that got the id sees the name
+    this._ids.put(scopeName, id);
+    return id;
+  }
+
+  public String getName(int id) {
+    return this._names[id];
+  }
+
+  /**
+   * Returns the ids of the scopes of a name of several scopes, or null if `id` is a single scope.
+   */
+  public int[] getScopeIds(int id) {
+    return this._scopeIds[id];
+  }
+
+  /**
+   * Returns the ids of the names the scope `id` starts with, followed by a dot, shortest first
+   * (`meta`, `meta.tag` for `meta.tag.inline`), or null if there are none.
+   */
+  public int[] getPrefixIds(int id) {
+    return this._prefixIds[id];
+  }
+
+  /**
+   * Returns true if the scope `id` is the scope `selectorId`, or starts with it followed by a dot: the
+   * way the scopes of a theme or injection selector match.
+   */
+  public boolean matches(int id, int selectorId) {
+    if (id == selectorId) {
+      return true;
+    }
+    if (id < 0) {
+      return false;
+    }
+    int[] prefixIds = this._prefixIds[id];
+    if (prefixIds != null) {
+      for (int i = 0; i < prefixIds.length; i++) {
+        if (prefixIds[i] == selectorId) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Like `matches`, for a scope without an id.
+   */
+  public boolean matches(String scopeName, int selectorId) {
+    String selector = this.getName(selectorId);
+    return scopeName.equals(selector) || (scopeName.length() > selector.length() && scopeName.startsWith(selector)
+        && scopeName.charAt(selector.length()) == '.');
+  }
+
+  public synchronized int size() {
+    return this._size;
+  }
+}
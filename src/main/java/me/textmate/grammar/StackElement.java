@@ -6,17 +6,18 @@ import java.util.List;
 import me.textmate.rule.IRuleRegistry;
 import me.textmate.rule.Rule;
 
+/**
+ * States are immutable values. The states at the end of the lines are interned by their grammar, so
+ * equal states are usually the same object, and comparing different ones usually stops at their
+ * precomputed hashes.
+ *
+ * The positions on the current line where states were pushed are kept by the tokenization of the
+ * line, not by the states.
+ */
 public class StackElement {
   // _stackElementBrand: void;
 
-  public static StackElement NULL = new StackElement(null, 0, 0, null, null, null);
-
-  /**
-   * The position on the current line where this state was pushed.
-   * This is relevant only while tokenizing a line, to detect endless loops.
-   * Its value is meaningless across lines.
-   */
-  private int _enterPos;
+  public static StackElement NULL = new StackElement(null, 0, null, null, null);
 
   /**
    * The previous state on the stack (or null for the root state).
@@ -45,30 +46,56 @@ public class StackElement {
    */
   public final ScopeListElement contentNameScopesList;
 
-  public StackElement(StackElement parent, int ruleId, int enterPos, String endRule, ScopeListElement nameScopesList,
+  private final int _hash;
+  /**
+   * Whether this state and its parents are the ones interned by the grammar.
+   */
+  boolean interned;
+
+  public StackElement(StackElement parent, int ruleId, String endRule, ScopeListElement nameScopesList,
       ScopeListElement contentNameScopesList) {
-        // if (ruleId == 0) {
-        //   (new Exception()).printStackTrace();
-        // }
     this.parent = parent;
     this.depth = (this.parent != null ? this.parent.depth + 1 : 1);
     this.ruleId = ruleId;
-    this._enterPos = enterPos;
     this.endRule = endRule;
     this.nameScopesList = nameScopesList;
     this.contentNameScopesList = contentNameScopesList;
+
+    int hash = (parent != null ? parent._hash : 0);
+    hash = 31 * hash + ruleId;
+    hash = 31 * hash + (endRule != null ? endRule.hashCode() : 0);
+    hash = 31 * hash + (nameScopesList != null ? nameScopesList.hashCode() : 0);
+    hash = 31 * hash + (contentNameScopesList != null ? contentNameScopesList.hashCode() : 0);
+    this._hash = hash;
   }
 
   /**
-   * A structural equals check. Does not take into account `scopes`.
+   * @deprecated The positions where states were pushed are kept by the tokenization of the line:
+   *             `enterPos` is ignored.
    */
-  private static boolean _structuralEquals(StackElement a, StackElement b) {
+  @Deprecated
+  public StackElement(StackElement parent, int ruleId, int enterPos, String endRule,
+      ScopeListElement nameScopesList, ScopeListElement contentNameScopesList) {
+    this(parent, ruleId, endRule, nameScopesList, contentNameScopesList);
+  }
+
+  private static boolean _equals(ScopeListElement a, ScopeListElement b) {
+    return a == b || (a != null && a.equals(b));
+  }
+
+  private static boolean _equals(StackElement a, StackElement b) {
     do {
       if (a == b) {
         return true;
       }
 
-      if (a.depth != b.depth || a.ruleId != b.ruleId || a.endRule != b.endRule) {
+      if (a._hash != b._hash || a.depth != b.depth || a.ruleId != b.ruleId) {
+        return false;
+      }
+      if (a.endRule != null ? !a.endRule.equals(b.endRule) : b.endRule != null) {
+        return false;
+      }
+      if (!_equals(a.nameScopesList, b.nameScopesList) || !_equals(a.contentNameScopesList, b.contentNameScopesList)) {
         return false;
       }
 
@@ -89,16 +116,6 @@ public class StackElement {
     } while (true);
   }
 
-  private static boolean _equals(StackElement a, StackElement b) {
-    if (a == b) {
-      return true;
-    }
-    if (!_structuralEquals(a, b)) {
-      return false;
-    }
-    return a.contentNameScopesList.equals(b.contentNameScopesList);
-  }
-
   public StackElement clone() {
     return this;
   }
@@ -110,15 +127,21 @@ public class StackElement {
     return StackElement._equals(this, other);
   }
 
-  private static void _reset(StackElement el) {
-    while (el != null) {
-      el._enterPos = -1;
-      el = el.parent;
-    }
+  @Override
+  public boolean equals(Object other) {
+    return other instanceof StackElement && this.equals((StackElement) other);
+  }
+
+  @Override
+  public int hashCode() {
+    return this._hash;
   }
 
+  /**
+   * @deprecated States do not keep positions anymore, there is nothing to reset.
+   */
+  @Deprecated
   public void reset() {
-    StackElement._reset(this);
   }
 
   public StackElement pop() {
@@ -132,13 +155,27 @@ public class StackElement {
     return this;
   }
 
+  public StackElement push(int ruleId, String endRule, ScopeListElement nameScopesList,
+      ScopeListElement contentNameScopesList) {
+    return new StackElement(this, ruleId, endRule, nameScopesList, contentNameScopesList);
+  }
+
+  /**
+   * @deprecated `enterPos` is ignored, see the constructor.
+   */
+  @Deprecated
   public StackElement push(int ruleId, int enterPos, String endRule, ScopeListElement nameScopesList,
       ScopeListElement contentNameScopesList) {
-    return new StackElement(this, ruleId, enterPos, endRule, nameScopesList, contentNameScopesList);
+    return this.push(ruleId, endRule, nameScopesList, contentNameScopesList);
   }
 
+  /**
+   * @deprecated States do not keep positions anymore: returns -1, like a state returned by a
+   *             tokenization always did.
+   */
+  @Deprecated
   public int getEnterPos() {
-    return this._enterPos;
+    return -1;
   }
 
   public Rule getRule(IRuleRegistry grammar) {
@@ -163,15 +200,14 @@ public class StackElement {
     if (this.contentNameScopesList == contentNameScopesList) {
       return this;
     }
-    return this.parent.push(this.ruleId, this._enterPos, this.endRule, this.nameScopesList, contentNameScopesList);
+    return new StackElement(this.parent, this.ruleId, this.endRule, this.nameScopesList, contentNameScopesList);
   }
 
   public StackElement setEndRule(String endRule) {
     if (this.endRule == endRule) {
       return this;
     }
-    return new StackElement(this.parent, this.ruleId, this._enterPos, endRule, this.nameScopesList,
-        this.contentNameScopesList);
+    return new StackElement(this.parent, this.ruleId, endRule, this.nameScopesList, this.contentNameScopesList);
   }
 
   public boolean hasSameRuleAs(StackElement other) {
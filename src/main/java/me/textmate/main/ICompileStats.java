@@ -0,0 +1,26 @@
+package me.textmate.main;
+
+/**
+ * The scanners a grammar compiled and the time it took, to measure the warm-up of a grammar.
+ */
+public interface ICompileStats {
+  /**
+   * The number of compiled scanners.
+   */
+  long getScannerCount();
+
+  /**
+   * The number of compiled scanners that are an anchor variant (`\A`, `\G`) of a list of patterns.
+   */
+  long getAnchorVariantCount();
+
+  /**
+   * The number of regular expressions in the compiled scanners.
+   */
+  long getRegExpCount();
+
+  /**
+   * The time spent compiling scanners.
+   */
+  long getCompileNanos();
+}
@@ -1,9 +1,62 @@
 package me.textmate.main;
 
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
 import me.textmate.grammar.StackElement;
 
+/**
+ * A grammar can be used by several threads once it is loaded (grammars must be loaded from one
+ * thread), see {@link ParallelTokenizer}. A `StackElement` must only be used by one thread.
+ */
 public interface IGrammar {
   ITokenizeLineResult tokenizeLine(String lineText, StackElement prevState);
 
   ITokenizeLineResult2 tokenizeLine2(String lineText, StackElement prevState);
+
+  /**
+   * Like `tokenizeLine2`, but the binary tokens replace the content of `tokens` instead of going to
+   * a new array. Returns the `prevState` to be passed on to the next line tokenization.
+   */
+  StackElement tokenizeLine2(String lineText, StackElement prevState, TokenBuffer tokens);
+
+  /**
+   * Tokenize a whole document, split on `\n`, `\r\n` and `\r`.
+   */
+  ITokenizeDocumentResult tokenizeDocument(CharSequence text);
+
+  ITokenizeDocumentResult tokenizeDocument(Iterator<String> lines);
+
+  /**
+   * Tokenize `lines`, the first one with `prevState`.
+   */
+  ITokenizeDocumentResult tokenizeDocument(Iterator<String> lines, StackElement prevState);
+
+  /**
+   * Like `tokenizeDocument(CharSequence)`, for large documents: chunks of lines (one per thread of a
+   * `ForkJoinPool`, or per processor) are tokenized in parallel on `executor`, all but the first one
+   * from the state before the first line. Then the chunks are retokenized one after the other from the
+   * real end state of the previous chunk, until a line ends in the state it ended in speculatively.
+   * Must not be called from a task of a bounded `executor`.
+   */
+  ITokenizeDocumentResult tokenizeDocument(CharSequence text, ExecutorService executor)
+      throws InterruptedException, ExecutionException;
+
+  /**
+   * Keep the binary tokens of up to `maxSize` lines, by line text and state before the line, so that
+   * `tokenizeLine2` and `tokenizeDocument` return the tokens of a repeated line without matching it
+   * again. 0 (the default) disables the cache. Replaces the current cache.
+   */
+  void setLineCacheSize(int maxSize);
+
+  /**
+   * Returns the line cache and its hit counters, null if disabled.
+   */
+  ILineCacheStats getLineCache();
+
+  /**
+   * Returns the number of scanners compiled so far and the time it took.
+   */
+  ICompileStats getCompileStats();
 }
\ No newline at end of file
@@ -0,0 +1,19 @@
+package me.textmate.main;
+
+/**
+ * The size and the hit counters of the line cache of a grammar, see `IGrammar.setLineCacheSize`.
+ */
+public interface ILineCacheStats {
+  int getMaxSize();
+
+  int size();
+
+  long getHits();
+
+  long getMisses();
+
+  /**
+   * Returns the ratio of the lookups that found their line, 0 before the first lookup.
+   */
+  double getHitRate();
+}
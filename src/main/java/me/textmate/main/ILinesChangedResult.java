@@ -0,0 +1,16 @@
+package me.textmate.main;
+
+public class ILinesChangedResult {
+  /**
+   * The lines from `startLine` (inclusive) to `endLine` (exclusive) have new tokens. The numbers are
+   * the line numbers after the edit.
+   */
+  public int startLine;
+  public int endLine;
+
+  /**
+   * The number of lines the edit added (or removed, if negative). Lines after `endLine` moved by
+   * that much but kept their tokens.
+   */
+  public int lineCountDelta;
+}
@@ -0,0 +1,34 @@
+package me.textmate.main;
+
+import me.textmate.grammar.StackElement;
+
+public class ITokenizeDocumentResult {
+  /**
+   * The tokens of all the lines, in the binary format of `ITokenizeLineResult2.tokens`. Start indices
+   * are relative to the start of their line.
+   */
+  public int[] tokens;
+
+  /**
+   * The tokens of line i are at offsets `lineOffsets[i]` (inclusive) to `lineOffsets[i + 1]`
+   * (exclusive) of `tokens`. Has `lineCount + 1` entries.
+   */
+  public int[] lineOffsets;
+
+  /**
+   * The state at the end of every line: `ruleStacks[i]` is the `prevState` to tokenize line `i + 1`.
+   */
+  public StackElement[] ruleStacks;
+
+  public int lineCount;
+
+  /**
+   * Returns a copy of the tokens of `line`, like `ITokenizeLineResult2.tokens`.
+   */
+  public int[] getLineTokens(int line) {
+    int start = this.lineOffsets[line];
+    int[] result = new int[this.lineOffsets[line + 1] - start];
+    System.arraycopy(this.tokens, start, result, 0, result.length);
+    return result;
+  }
+}
@@ -0,0 +1,89 @@
+package me.textmate.main;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Tokenizes several documents in parallel with one shared grammar.
+ *
+ * A loaded grammar can be used by several threads: the compiled rules are shared, while the state of
+ * the searches in a line (matchers, results) belongs to the tokenization of that line. Every document
+ * is tokenized by one task of the executor, or a large one by several, see `tokenizeDocument`.
+ */
+public class ParallelTokenizer {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final IGrammar _grammar;
+  private final ExecutorService _executor;
+
+  public ParallelTokenizer(IGrammar grammar) {
+    this(grammar, ForkJoinPool.commonPool());
+  }
+
+  public ParallelTokenizer(IGrammar grammar, ExecutorService executor) {
+    this._grammar = grammar;
+    this._executor = executor;
+  }
+
+  /**
+   * Tokenize `documents`, see `IGrammar.tokenizeDocument`. The results are in the order of
+   * `documents`.
+   */
+  public List<ITokenizeDocumentResult> tokenizeDocuments(List<? extends CharSequence> documents)
+      throws InterruptedException, ExecutionException {
+    List<Callable<ITokenizeDocumentResult>> tasks = new ArrayList<Callable<ITokenizeDocumentResult>>(
+        documents.size());
+    for (final CharSequence document : documents) {
+      tasks.add(new Callable<ITokenizeDocumentResult>() {
+        public ITokenizeDocumentResult call() {
+          return _grammar.tokenizeDocument(document);
+        }
+      });
+    }
+    return this.invokeAll(tasks);
+  }
+
+  /**
+   * Tokenize one large `document` in parallel chunks, see `IGrammar.tokenizeDocument(CharSequence,
+   * ExecutorService)`.
+   */
+  public ITokenizeDocumentResult tokenizeDocument(CharSequence document)
+      throws InterruptedException, ExecutionException {
+    return this._grammar.tokenizeDocument(document, this._executor);
+  }
+
+  /**
+   * Read `files` as UTF-8 and tokenize them. The results are in the order of `files`.
+   */
+  public List<ITokenizeDocumentResult> tokenizeFiles(List<Path> files)
+      throws InterruptedException, ExecutionException {
+    List<Callable<ITokenizeDocumentResult>> tasks = new ArrayList<Callable<ITokenizeDocumentResult>>(
+        files.size());
+    for (final Path file : files) {
+      tasks.add(new Callable<ITokenizeDocumentResult>() {
+        public ITokenizeDocumentResult call() throws IOException {
+          return _grammar.tokenizeDocument(new String(Files.readAllBytes(file), UTF_8));
+        }
+      });
+    }
+    return this.invokeAll(tasks);
+  }
+
+  private List<ITokenizeDocumentResult> invokeAll(List<Callable<ITokenizeDocumentResult>> tasks)
+      throws InterruptedException, ExecutionException {
+    List<ITokenizeDocumentResult> results = new ArrayList<ITokenizeDocumentResult>(tasks.size());
+    for (Future<ITokenizeDocumentResult> future : this._executor.invokeAll(tasks)) {
+      results.add(future.get());
+    }
+    return results;
+  }
+}
@@ -21,7 +21,7 @@ public class Registry {
 
 	public Registry(RegistryOptions locator) {
 		this._locator = locator;
-		this._syncRegistry = new SyncRegistry(Theme.createFromRawTheme(locator.theme));
+		this._syncRegistry = new SyncRegistry(Theme.createFromRawTheme(locator.theme), locator.combinedScanners);
 	}
 
 	public Registry() {
@@ -5,6 +5,11 @@ package me.textmate.main;
  */
 public abstract class RegistryOptions {
   public IRawTheme theme;
+  /**
+   * Search all the patterns of a rule in one pass, with one alternation, instead of one search per
+   * pattern, see {@link me.oniguruma.OnigSearcher}. Off by default.
+   */
+  public boolean combinedScanners;
 
   public abstract String getFilePath(String scopeName);
 
@@ -0,0 +1,95 @@
+package me.textmate.main;
+
+/**
+ * A growable buffer of tokens in binary format, see {@link ITokenizeLineResult2#tokens}. Pass the
+ * same buffer to {@link IGrammar#tokenizeLine2(String, me.textmate.grammar.StackElement, TokenBuffer)}
+ * for every line to tokenize without allocating a new array per line.
+ */
+public class TokenBuffer {
+  private int[] _tokens;
+  private int _length;
+
+  public TokenBuffer() {
+    this(64);
+  }
+
+  public TokenBuffer(int capacity) {
+    this._tokens = new int[Math.max(capacity, 2)];
+    this._length = 0;
+  }
+
+  /**
+   * The number of ints in the buffer, two per token.
+   */
+  public int length() {
+    return this._length;
+  }
+
+  public int tokenCount() {
+    return this._length / 2;
+  }
+
+  public int getStartIndex(int tokenIndex) {
+    return this._tokens[2 * tokenIndex];
+  }
+
+  public int getMetadata(int tokenIndex) {
+    return this._tokens[2 * tokenIndex + 1];
+  }
+
+  public int get(int index) {
+    return this._tokens[index];
+  }
+
+  public void set(int index, int value) {
+    this._tokens[index] = value;
+  }
+
+  public void add(int startIndex, int metadata) {
+    if (this._length + 2 > this._tokens.length) {
+      int[] tokens = new int[this._tokens.length * 2];
+      System.arraycopy(this._tokens, 0, tokens, 0, this._length);
+      this._tokens = tokens;
+    }
+    this._tokens[this._length++] = startIndex;
+    this._tokens[this._length++] = metadata;
+  }
+
+  /**
+   * Appends `tokens`, in binary format.
+   */
+  public void addAll(int[] tokens) {
+    if (this._length + tokens.length > this._tokens.length) {
+      int[] newTokens = new int[Math.max(this._tokens.length * 2, this._length + tokens.length)];
+      System.arraycopy(this._tokens, 0, newTokens, 0, this._length);
+      this._tokens = newTokens;
+    }
+    System.arraycopy(tokens, 0, this._tokens, this._length, tokens.length);
+    this._length += tokens.length;
+  }
+
+  /**
+   * Keeps only the first `length` ints.
+   */
+  public void truncate(int length) {
+    this._length = length;
+  }
+
+  public void clear() {
+    this._length = 0;
+  }
+
+  /**
+   * Returns the backing array, only the first `length()` ints are tokens. It is replaced when the
+   * buffer grows.
+   */
+  public int[] array() {
+    return this._tokens;
+  }
+
+  public int[] toArray() {
+    int[] result = new int[this._length];
+    System.arraycopy(this._tokens, 0, result, 0, this._length);
+    return result;
+  }
+}
@@ -0,0 +1,131 @@
+package me.textmate.main;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import me.textmate.grammar.StackElement;
+import me.textmate.utils.Utils;
+
+/**
+ * A document whose tokens are kept up to date as it is edited.
+ *
+ * The document keeps the tokens and the end state of every line. An edit retokenizes the edited
+ * lines and then the following lines only until the end state of a line is equal to the state it had
+ * before the edit: from there on, nothing can change.
+ */
+public class TokenizedDocument {
+  private final IGrammar _grammar;
+  private final List<String> _lines;
+  private final List<int[]> _tokens;
+  /**
+   * The state at the end of every line.
+   */
+  private final List<StackElement> _states;
+  private final TokenBuffer _buffer;
+
+  public TokenizedDocument(IGrammar grammar, CharSequence text) {
+    this._grammar = grammar;
+    this._lines = Utils.splitLines(text);
+    this._buffer = new TokenBuffer();
+
+    ITokenizeDocumentResult result = grammar.tokenizeDocument(this._lines.iterator());
+    this._tokens = new ArrayList<int[]>(result.lineCount);
+    this._states = new ArrayList<StackElement>(result.lineCount);
+    for (int i = 0; i < result.lineCount; i++) {
+      this._tokens.add(result.getLineTokens(i));
+      this._states.add(result.ruleStacks[i]);
+    }
+  }
+
+  public int getLineCount() {
+    return this._lines.size();
+  }
+
+  public String getLine(int line) {
+    return this._lines.get(line);
+  }
+
+  /**
+   * Returns the tokens of `line` in binary format, see `ITokenizeLineResult2.tokens`.
+   */
+  public int[] getLineTokens(int line) {
+    return this._tokens.get(line);
+  }
+
+  /**
+   * Returns the state at the end of `line`.
+   */
+  public StackElement getEndState(int line) {
+    return this._states.get(line);
+  }
+
+  public String getText() {
+    return String.join("\n", this._lines);
+  }
+
+  /**
+   * Replaces the text between (`startLine`, `startColumn`) and (`endLine`, `endColumn`) by `text`,
+   * which may contain line terminators, and retokenizes what the edit changed. The range is checked
+   * before anything changes: an invalid range throws an `IllegalArgumentException` and leaves the
+   * document untouched.
+   */
+  public ILinesChangedResult applyEdit(int startLine, int startColumn, int endLine, int endColumn, String text) {
+    if (startLine < 0 || endLine >= this._lines.size() || startLine > endLine
+        || startColumn < 0 || startColumn > this._lines.get(startLine).length()
+        || endColumn < 0 || endColumn > this._lines.get(endLine).length()
+        || (startLine == endLine && startColumn > endColumn)) {
+      throw new IllegalArgumentException(
+          "Invalid range (" + startLine + ", " + startColumn + ") - (" + endLine + ", " + endColumn + ")");
+    }
+    String first = this._lines.get(startLine);
+    String last = this._lines.get(endLine);
+    List<String> newLines = Utils.splitLines(text);
+    int newLineCount = newLines.size();
+    newLines.set(0, first.substring(0, startColumn) + newLines.get(0));
+    newLines.set(newLineCount - 1, newLines.get(newLineCount - 1) + last.substring(endColumn));
+
+    // the line after the edit was tokenized from the state at the end of `endLine`
+    StackElement oldEndState = this._states.get(endLine);
+
+    // replace the edited lines
+    int oldLineCount = endLine - startLine + 1;
+    for (int i = 0; i < newLineCount; i++) {
+      if (i < oldLineCount) {
+        this._lines.set(startLine + i, newLines.get(i));
+      } else {
+        this._lines.add(startLine + i, newLines.get(i));
+        this._tokens.add(startLine + i, null);
+        this._states.add(startLine + i, null);
+      }
+    }
+    if (oldLineCount > newLineCount) {
+      int from = startLine + newLineCount;
+      int to = startLine + oldLineCount;
+      this._lines.subList(from, to).clear();
+      this._tokens.subList(from, to).clear();
+      this._states.subList(from, to).clear();
+    }
+
+    // retokenize the edited lines, then the next ones until the states converge
+    StackElement state = startLine > 0 ? this._states.get(startLine - 1) : null;
+    int line = startLine;
+    int lastEditedLine = startLine + newLineCount - 1;
+    int lineCount = this._lines.size();
+    while (line < lineCount) {
+      state = this._grammar.tokenizeLine2(this._lines.get(line), state, this._buffer);
+      this._tokens.set(line, this._buffer.toArray());
+      StackElement oldState = line == lastEditedLine ? oldEndState : this._states.get(line);
+      this._states.set(line, state);
+      line++;
+      if (line > lastEditedLine && state.equals(oldState)) {
+        break;
+      }
+    }
+
+    ILinesChangedResult result = new ILinesChangedResult();
+    result.startLine = startLine;
+    result.endLine = line;
+    result.lineCountDelta = newLineCount - oldLineCount;
+    return result;
+  }
+}
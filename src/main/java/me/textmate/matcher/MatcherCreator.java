@@ -2,17 +2,22 @@ package me.textmate.matcher;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
 import me.textmate.Predicate;
 
+/**
+ * Parses a scope selector (`source.js string - comment, (meta | markup)`) into a {@link Matcher}.
+ * Every run of scope names is compiled once, by the `nameMatcherFactory` given to `createMatcher`.
+ */
 public class MatcherCreator<T> {
-  private Predicate<String[], T> matchesName;
+  private Function<String[], Matcher<T>> nameMatcherFactory;
   private String token;
   private INext tokenizer;
 
   private Matcher<T> parseOperand() {
-    if (this.token.equals("-")) {
+    if ("-".equals(this.token)) {
       this.token = tokenizer.next();
       final Matcher<T> expressionToNegate = parseOperand();
       return new Matcher<T>() {
@@ -21,10 +26,10 @@ public class MatcherCreator<T> {
         }
       };
     }
-    if (token.equals("(")) {
+    if ("(".equals(token)) {
       token = tokenizer.next();
       Matcher<T> expressionInParents = parseExpression("|");
-      if (token.equals(")")) {
+      if (")".equals(token)) {
         token = tokenizer.next();
       }
       return expressionInParents;
@@ -36,11 +41,7 @@ public class MatcherCreator<T> {
         token = tokenizer.next();
       } while (isIdentifier(token));
 
-      return new Matcher<T>() {
-        public boolean call(T matcherInput) {
-          return matchesName.call(identifiers.toArray(new String[0]), matcherInput);
-        }
-      };
+      return nameMatcherFactory.apply(identifiers.toArray(new String[0]));
     }
     return null;
   }
@@ -73,10 +74,10 @@ public class MatcherCreator<T> {
     Matcher<T> matcher = parseConjunction();
     while (matcher != null) {
       matchers.add(matcher);
-      if (token == orOperatorToken) {
+      if (orOperatorToken.equals(token)) {
         do {
           token = tokenizer.next();
-        } while (token == orOperatorToken); // ignore subsequent commas
+        } while (orOperatorToken.equals(token)); // ignore subsequent commas
       } else {
         break;
       }
@@ -94,8 +95,24 @@ public class MatcherCreator<T> {
     };
   }
 
-  public Matcher<T> createMatcher(String expression, Predicate<String[], T> matchesName) {
-    this.matchesName = matchesName;
+  public Matcher<T> createMatcher(String expression, final Predicate<String[], T> matchesName) {
+    return this.createMatcher(expression, new Function<String[], Matcher<T>>() {
+      public Matcher<T> apply(final String[] identifiers) {
+        return new Matcher<T>() {
+          public boolean call(T matcherInput) {
+            return matchesName.call(identifiers, matcherInput);
+          }
+        };
+      }
+    });
+  }
+
+  /**
+   * Returns the matcher of `expression`. `nameMatcherFactory` is called once per run of scope names of
+   * the selector, when it is parsed, and returns the matcher of those names.
+   */
+  public Matcher<T> createMatcher(String expression, Function<String[], Matcher<T>> nameMatcherFactory) {
+    this.nameMatcherFactory = nameMatcherFactory;
     this.tokenizer = newTokenizer(expression);
     this.token = tokenizer.next();
     Matcher<T> result = parseExpression();
@@ -119,15 +136,11 @@ public class MatcherCreator<T> {
 
     final java.util.regex.Matcher matcher = regex.matcher(input);
     return new INext() {
-      java.util.regex.Matcher _match = matcher;
-
       public String next() {
-        if (_match == null) {
+        if (!matcher.find()) {
           return null;
         }
-        String res = _match.group(0);
-        _match = regex.matcher(input);
-        return res;
+        return matcher.group(0);
       }
     };
   }
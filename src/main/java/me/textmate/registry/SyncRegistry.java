@@ -2,9 +2,11 @@ package me.textmate.registry;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import me.textmate.grammar.Grammar;
 import me.textmate.grammar.IScopeNameSet;
+import me.textmate.grammar.ScopeTable;
 import me.textmate.theme.ThemeTrieElementRule;
 
 import me.textmate.main.IEmbeddedLanguagesMap;
@@ -17,15 +19,26 @@ public class SyncRegistry implements IGrammarRepositoryAndIThemeProvider {
   private final Map<String, Grammar> _grammars;
   private final Map<String, IRawGrammar> _rawGrammars;
   private final Map<String, String[]> _injectionGrammars;
-  private Theme _theme;
+  private volatile Theme _theme;
+  private final ScopeTable _scopeTable;
+  private final boolean _combinedScanners;
 
   public SyncRegistry(Theme theme) {
+    this(theme, false);
+  }
+
+  public SyncRegistry(Theme theme, boolean combinedScanners) {
     this._theme = theme;
-    this._grammars = new HashMap<String, Grammar>();
+    this._combinedScanners = combinedScanners;
+    this._grammars = new ConcurrentHashMap<String, Grammar>();
     this._rawGrammars = new HashMap<String, IRawGrammar>();
     this._injectionGrammars = new HashMap<String, String[]>();
+    this._scopeTable = new ScopeTable();
   }
 
+  /**
+   * Change the theme. Tokenizations that are running keep the metadata of the previous theme.
+   */
   public void setTheme(Theme theme) {
     this._theme = theme;
     for (Grammar grammar : this._grammars.values()) {
@@ -64,6 +77,14 @@ public class SyncRegistry implements IGrammarRepositoryAndIThemeProvider {
     return this._injectionGrammars.get(targetScope);
   }
 
+  public ScopeTable getScopeTable() {
+    return this._scopeTable;
+  }
+
+  public boolean useCombinedScanners() {
+    return this._combinedScanners;
+  }
+
   /**
    * Get the default theme settings
    */
@@ -78,7 +99,7 @@ public class SyncRegistry implements IGrammarRepositoryAndIThemeProvider {
     return this._theme.match(scopeName);
   }
 
-  public IGrammar grammarForScopeName(String scopeName, int initialLanguage, IEmbeddedLanguagesMap embeddedLanguages) {
+  public synchronized IGrammar grammarForScopeName(String scopeName, int initialLanguage, IEmbeddedLanguagesMap embeddedLanguages) {
     if (!this._grammars.containsKey(scopeName)) {
       IRawGrammar rawGrammar = this._rawGrammars.get(scopeName);
       if (rawGrammar == null) {
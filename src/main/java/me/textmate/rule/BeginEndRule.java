@@ -13,7 +13,7 @@ public class BeginEndRule extends Rule {
   public final boolean hasMissingPatterns;
   public final int[] patterns;
 
-  private RegExpSourceList _cachedCompiledPatterns;
+  private volatile RegExpSourceList _cachedCompiledPatterns;
 
   public BeginEndRule(ILocation location, int id, String name, String contentName, String begin,
       CaptureRule[] beginCaptures, String end, CaptureRule[] endCaptures, boolean applyEndPatternLast,
@@ -57,30 +57,36 @@ public class BeginEndRule extends Rule {
     }
   }
 
+  /**
+   * Returns the compiled patterns, with `endRegexSource` as the end pattern if it has back references.
+   * Nothing shared is changed, so threads tokenizing with different end patterns do not see each
+   * other's.
+   */
   public ICompiledRule compile(IRuleRegistry grammar, String endRegexSource, boolean allowA, boolean allowG) {
-    RegExpSourceList precompiled = this._precompile(grammar);
+    RegExpSourceList precompiled = this._cachedCompiledPatterns;
+    if (precompiled == null) {
+      precompiled = this._precompile(grammar);
+    }
 
     if (this._end.hasBackReferences) {
-      if (this.applyEndPatternLast) {
-        precompiled.setSource(precompiled.length() - 1, endRegexSource);
-      } else {
-        precompiled.setSource(0, endRegexSource);
-      }
+      int index = this.applyEndPatternLast ? precompiled.length() - 1 : 0;
+      return precompiled.compileWithSource(grammar, index, endRegexSource, allowA, allowG);
     }
-    return this._cachedCompiledPatterns.compile(grammar, allowA, allowG);
+    return precompiled.compile(grammar, allowA, allowG);
   }
 
-  private RegExpSourceList _precompile(IRuleRegistry grammar) {
+  private synchronized RegExpSourceList _precompile(IRuleRegistry grammar) {
     if (this._cachedCompiledPatterns == null) {
-      this._cachedCompiledPatterns = new RegExpSourceList();
+      RegExpSourceList precompiled = new RegExpSourceList();
 
-      this.collectPatternsRecursive(grammar, this._cachedCompiledPatterns, true);
+      this.collectPatternsRecursive(grammar, precompiled, true);
 
       if (this.applyEndPatternLast) {
-        this._cachedCompiledPatterns.push(this._end.hasBackReferences ? this._end.clone() : this._end);
+        precompiled.push(this._end);
       } else {
-        this._cachedCompiledPatterns.unshift(this._end.hasBackReferences ? this._end.clone() : this._end);
+        precompiled.unshift(this._end);
       }
+      this._cachedCompiledPatterns = precompiled;
     }
     return this._cachedCompiledPatterns;
   }
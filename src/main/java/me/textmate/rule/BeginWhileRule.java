@@ -11,8 +11,8 @@ public class BeginWhileRule extends Rule {
   public final boolean whileHasBackReferences;
   public final boolean hasMissingPatterns;
   public final int[] patterns;
-  private RegExpSourceList _cachedCompiledPatterns;
-  private RegExpSourceList _cachedCompiledWhilePatterns;
+  private volatile RegExpSourceList _cachedCompiledPatterns;
+  private volatile RegExpSourceList _cachedCompiledWhilePatterns;
 
   public BeginWhileRule(ILocation location, int id, String name, String contentName, String begin,
       CaptureRule[] beginCaptures, String _while, CaptureRule[] whileCaptures, ICompilePatternsResult patterns) {
@@ -48,29 +48,43 @@ public class BeginWhileRule extends Rule {
   }
 
   public ICompiledRule compile(IRuleRegistry grammar, String endRegexSource, boolean allowA, boolean allowG) {
-    this._precompile(grammar);
-    return this._cachedCompiledPatterns.compile(grammar, allowA, allowG);
+    RegExpSourceList precompiled = this._cachedCompiledPatterns;
+    if (precompiled == null) {
+      precompiled = this._precompile(grammar);
+    }
+    return precompiled.compile(grammar, allowA, allowG);
   }
 
-  private void _precompile(IRuleRegistry grammar) {
+  private synchronized RegExpSourceList _precompile(IRuleRegistry grammar) {
     if (this._cachedCompiledPatterns == null) {
-      this._cachedCompiledPatterns = new RegExpSourceList();
-      this.collectPatternsRecursive(grammar, this._cachedCompiledPatterns, true);
+      RegExpSourceList precompiled = new RegExpSourceList();
+      this.collectPatternsRecursive(grammar, precompiled, true);
+      this._cachedCompiledPatterns = precompiled;
     }
+    return this._cachedCompiledPatterns;
   }
 
+  /**
+   * Returns the compiled while pattern, `endRegexSource` if it has back references, see
+   * `BeginEndRule.compile`.
+   */
   public ICompiledRule compileWhile(IRuleRegistry grammar, String endRegexSource, boolean allowA, boolean allowG) {
-    this._precompileWhile(grammar);
+    RegExpSourceList precompiled = this._cachedCompiledWhilePatterns;
+    if (precompiled == null) {
+      precompiled = this._precompileWhile();
+    }
     if (this._while.hasBackReferences) {
-      this._cachedCompiledWhilePatterns.setSource(0, endRegexSource);
+      return precompiled.compileWithSource(grammar, 0, endRegexSource, allowA, allowG);
     }
-    return this._cachedCompiledWhilePatterns.compile(grammar, allowA, allowG);
+    return precompiled.compile(grammar, allowA, allowG);
   }
 
-  private void _precompileWhile(IRuleRegistry grammar) {
+  private synchronized RegExpSourceList _precompileWhile() {
     if (this._cachedCompiledWhilePatterns == null) {
-      this._cachedCompiledWhilePatterns = new RegExpSourceList();
-      this._cachedCompiledWhilePatterns.push(this._while.hasBackReferences ? this._while.clone() : this._while);
+      RegExpSourceList precompiled = new RegExpSourceList();
+      precompiled.push(this._while);
+      this._cachedCompiledWhilePatterns = precompiled;
     }
+    return this._cachedCompiledWhilePatterns;
   }
 }
\ No newline at end of file
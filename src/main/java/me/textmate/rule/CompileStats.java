@@ -0,0 +1,57 @@
+package me.textmate.rule;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.textmate.main.ICompileStats;
+
+/**
+ * Counts the scanners a grammar compiled and the time it took, to measure the warm-up of a grammar.
+ */
+public class CompileStats implements ICompileStats {
+  private final AtomicLong _scannerCount = new AtomicLong();
+  private final AtomicLong _anchorVariantCount = new AtomicLong();
+  private final AtomicLong _regExpCount = new AtomicLong();
+  private final AtomicLong _compileNanos = new AtomicLong();
+
+  void add(int regExpCount, boolean isAnchorVariant, long nanos) {
+    this._scannerCount.incrementAndGet();
+    if (isAnchorVariant) {
+      this._anchorVariantCount.incrementAndGet();
+    }
+    this._regExpCount.addAndGet(regExpCount);
+    this._compileNanos.addAndGet(nanos);
+  }
+
+  /**
+   * The number of compiled scanners.
+   */
+  public long getScannerCount() {
+    return this._scannerCount.get();
+  }
+
+  /**
+   * The number of compiled scanners that are an anchor variant (`\A`, `\G`) of a list of patterns.
+   */
+  public long getAnchorVariantCount() {
+    return this._anchorVariantCount.get();
+  }
+
+  /**
+   * The number of regular expressions in the compiled scanners.
+   */
+  public long getRegExpCount() {
+    return this._regExpCount.get();
+  }
+
+  /**
+   * The time spent compiling scanners.
+   */
+  public long getCompileNanos() {
+    return this._compileNanos.get();
+  }
+
+  public String toString() {
+    return String.format("%d scanners (%d anchor variants), %d regular expressions, %.1f ms", this.getScannerCount(),
+        this.getAnchorVariantCount(), this.getRegExpCount(), this.getCompileNanos() / 1e6);
+  }
+}
@@ -2,8 +2,18 @@ package me.textmate.rule;
 
 import me.oniguruma.OnigScanner;
 
+/**
+ * A compiled list of patterns. It is immutable, so it is shared by all the threads that tokenize
+ * with the grammar.
+ */
 public class ICompiledRule {
-  public OnigScanner scanner;
-  public int[] rules;
-  public String[] debugRegExps;
+  public final OnigScanner scanner;
+  public final int[] rules;
+  public final String[] debugRegExps;
+
+  public ICompiledRule(OnigScanner scanner, int[] rules, String[] debugRegExps) {
+    this.scanner = scanner;
+    this.rules = rules;
+    this.debugRegExps = debugRegExps;
+  }
 }
\ No newline at end of file
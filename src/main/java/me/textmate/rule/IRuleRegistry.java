@@ -6,4 +6,22 @@ public interface IRuleRegistry {
   Rule getRule(int patternId);
 
   Rule registerRule(Function<Integer, Rule> factory);
+
+  CompileStats getCompileStats();
+
+  /**
+   * Returns the id of `scopeName` in the scope table of the grammar, -1 if it is null.
+   */
+  int getScopeId(String scopeName);
+
+  /**
+   * Like `getScopeId`, for a name built from captures: returns `ScopeTable.UNINTERNED` once the scope
+   * table has no room left for such names.
+   */
+  int getDynamicScopeId(String scopeName);
+
+  /**
+   * Whether the scanners of the grammar search all their patterns in one pass.
+   */
+  boolean useCombinedScanners();
 }
\ No newline at end of file
@@ -5,7 +5,7 @@ import me.textmate.types.ILocation;
 public class IncludeOnlyRule extends Rule {
 	public final boolean hasMissingPatterns;
 	public final int[] patterns;
-	private RegExpSourceList _cachedCompiledPatterns;
+	private volatile RegExpSourceList _cachedCompiledPatterns;
 
 	public IncludeOnlyRule(ILocation location, int id, String name, String contentName, ICompilePatternsResult patterns) {
 		super(location, id, name, contentName);
@@ -26,10 +26,19 @@ public class IncludeOnlyRule extends Rule {
 	}
 
 	public ICompiledRule compile(IRuleRegistry grammar, String endRegexSource, boolean allowA, boolean allowG) {
+		RegExpSourceList precompiled = this._cachedCompiledPatterns;
+		if (precompiled == null) {
+			precompiled = this._precompile(grammar);
+		}
+		return precompiled.compile(grammar, allowA, allowG);
+	}
+
+	private synchronized RegExpSourceList _precompile(IRuleRegistry grammar) {
 		if (this._cachedCompiledPatterns == null) {
-			this._cachedCompiledPatterns = new RegExpSourceList();
-			this.collectPatternsRecursive(grammar, this._cachedCompiledPatterns, true);
+			RegExpSourceList precompiled = new RegExpSourceList();
+			this.collectPatternsRecursive(grammar, precompiled, true);
+			this._cachedCompiledPatterns = precompiled;
 		}
-		return this._cachedCompiledPatterns.compile(grammar, allowA, allowG);
+		return this._cachedCompiledPatterns;
 	}
 }
\ No newline at end of file
@@ -7,15 +7,27 @@ import java.util.regex.Pattern;
 
 import me.oniguruma.IOnigCaptureIndex;
 
+/**
+ * A pattern of a rule. It is immutable: an end pattern with back references is resolved into a new
+ * source, see `resolveBackReferences`.
+ */
 public class RegExpSource {
   public static String HAS_BACK_REFERENCES = "\\\\(\\d+)";
   public static String BACK_REFERENCING_END = "\\\\(\\d+)";
+  private static final Pattern HAS_BACK_REFERENCE = Pattern.compile(HAS_BACK_REFERENCES);
+  private static final Pattern BACK_REFERENCE = Pattern.compile(BACK_REFERENCING_END);
+  private static final Pattern REGEXP_CHARACTER = Pattern.compile("[\\-\\\\\\{\\}\\*\\+\\?\\|\\^\\$\\.\\,\\[\\]\\(\\)\\#\\s]");
 
-  public String source;
+  public final String source;
   public final int ruleId;
-  public boolean hasAnchor;
+  public final boolean hasAnchor;
+  /**
+   * Whether the source has a `\A`, a `\G`.
+   */
+  public final boolean hasAnchorA;
+  public final boolean hasAnchorG;
   public final boolean hasBackReferences;
-  private IRegExpSourceAnchorCache _anchorCache;
+  private final IRegExpSourceAnchorCache _anchorCache;
 
   public RegExpSource(String regExpSource, int ruleId) {
     this(regExpSource, ruleId, true);
@@ -23,18 +35,19 @@ public class RegExpSource {
 
   public RegExpSource(String regExpSource, int ruleId, boolean handleAnchors) {
     if (handleAnchors) {
-      this._handleAnchors(regExpSource);
+      this.source = _handleEndAnchors(regExpSource);
+      this.hasAnchorA = _hasAnchor(regExpSource, 'A');
+      this.hasAnchorG = _hasAnchor(regExpSource, 'G');
     } else {
       this.source = regExpSource;
-      this.hasAnchor = false;
-    }
-
-    if (this.hasAnchor) {
-      this._anchorCache = this._buildAnchorCache();
+      this.hasAnchorA = false;
+      this.hasAnchorG = false;
     }
+    this.hasAnchor = this.hasAnchorA || this.hasAnchorG;
+    this._anchorCache = this.hasAnchor ? this._buildAnchorCache() : null;
 
     this.ruleId = ruleId;
-    this.hasBackReferences = Pattern.matches(HAS_BACK_REFERENCES, this.source);
+    this.hasBackReferences = this.source != null && HAS_BACK_REFERENCE.matcher(this.source).find();
 
     // console.log('input: ' + regExpSource + ' => ' + this.source + ', ' + this.hasAnchor);
   }
@@ -43,122 +56,106 @@ public class RegExpSource {
     return new RegExpSource(this.source, this.ruleId, true);
   }
 
-  public void setSource(String newSource) {
-    if (this.source == newSource) {
-      return;
+  /**
+   * Returns `regExpSource` where `\z` is replaced by `$(?!\n)(?<!\n)`.
+   */
+  private static String _handleEndAnchors(String regExpSource) {
+    if (regExpSource == null) {
+      return null;
     }
-    this.source = newSource;
-
-    if (this.hasAnchor) {
-      this._anchorCache = this._buildAnchorCache();
+    int lastPushedPos = 0;
+    List<String> output = new ArrayList<String>();
+    for (int pos = 0, len = regExpSource.length(); pos + 1 < len; pos++) {
+      if (regExpSource.charAt(pos) == '\\') {
+        if (regExpSource.charAt(pos + 1) == 'z') {
+          output.add(regExpSource.substring(lastPushedPos, pos));
+          output.add("$(?!\\n)(?<!\\n)");
+          lastPushedPos = pos + 2;
+        }
+        pos++;
+      }
+    }
+    if (lastPushedPos == 0) {
+      // No \z hit
+      return regExpSource;
     }
+    output.add(regExpSource.substring(lastPushedPos));
+    return String.join("", output);
   }
 
-  private void _handleAnchors(String regExpSource) {
-    if (regExpSource != null) {
-      int pos;
-      int len;
-      Character ch;
-      Character nextCh;
-      int lastPushedPos = 0;
-      List<String> output = new ArrayList<String>();
-
-      boolean hasAnchor = false;
-      for (pos = 0, len = regExpSource.length(); pos < len; pos++) {
-        ch = regExpSource.charAt(pos);
-
-        if (ch == '\\') {
-          if (pos + 1 < len) {
-            nextCh = regExpSource.charAt(pos + 1);
-            if (nextCh == 'z') {
-              output.add(regExpSource.substring(lastPushedPos, pos));
-              output.add("$(?!\\n)(?<!\\n)");
-              lastPushedPos = pos + 2;
-            } else if (nextCh == 'A' || nextCh == 'G') {
-              hasAnchor = true;
-            }
-            pos++;
-          }
+  /**
+   * Returns true if `regExpSource` has the escape of `anchor`, `\A` or `\G`.
+   */
+  private static boolean _hasAnchor(String regExpSource, char anchor) {
+    if (regExpSource == null) {
+      return false;
+    }
+    for (int pos = 0, len = regExpSource.length(); pos + 1 < len; pos++) {
+      if (regExpSource.charAt(pos) == '\\') {
+        if (regExpSource.charAt(pos + 1) == anchor) {
+          return true;
         }
+        pos++;
       }
-
-      this.hasAnchor = hasAnchor;
-      if (lastPushedPos == 0) {
-        // No \z hit
-        this.source = regExpSource;
-      } else {
-        output.add(regExpSource.substring(lastPushedPos, len));
-        this.source = String.join("", output);
-      }
-    } else {
-      this.hasAnchor = false;
-      this.source = regExpSource;
     }
+    return false;
   }
 
+  /**
+   * Returns the source where every back reference is replaced by the text it captured in `lineText`,
+   * escaped, or by nothing if the group did not capture.
+   */
   public String resolveBackReferences(final String lineText, IOnigCaptureIndex[] captureIndices) {
-    Pattern p = Pattern.compile(BACK_REFERENCING_END);
-    Matcher m = p.matcher(this.source);
+    Matcher m = BACK_REFERENCE.matcher(this.source);
     StringBuffer s = new StringBuffer();
     while (m.find()) {
-      IOnigCaptureIndex capture = captureIndices[Integer.parseInt(m.group(1))];
-      if (capture == null) {
+      int index = Integer.parseInt(m.group(1));
+      IOnigCaptureIndex capture = index < captureIndices.length ? captureIndices[index] : null;
+      if (capture == null || capture.getStart() < 0) {
         m.appendReplacement(s, "");
       } else {
         String v = lineText.substring(capture.getStart(), capture.getEnd());
-        m.appendReplacement(s, v);
+        m.appendReplacement(s, Matcher.quoteReplacement(escapeRegExpCharacters(v)));
       }
     }
+    m.appendTail(s);
     return s.toString();
   }
 
+  private static String escapeRegExpCharacters(String value) {
+    return REGEXP_CHARACTER.matcher(value).replaceAll("\\\\$0");
+  }
+
+  /**
+   * Builds the sources where the anchors that are not allowed are replaced by `\uFFFF`, in one pass
+   * over the source. Variants that only differ by an anchor the source does not have are the same
+   * string.
+   */
   private IRegExpSourceAnchorCache _buildAnchorCache() {
-    String[] A0_G0_result = new String[this.source.length()];
-    String[] A0_G1_result = new String[this.source.length()];
-    String[] A1_G0_result = new String[this.source.length()];
-    String[] A1_G1_result = new String[this.source.length()];
-
-    int pos;
-    int len;
-    Character ch;
-    Character nextCh;
-
-    for (pos = 0, len = this.source.length(); pos < len; pos++) {
-      ch = this.source.charAt(pos);
-      A0_G0_result[pos] = ch.toString();
-      A0_G1_result[pos] = ch.toString();
-      A1_G0_result[pos] = ch.toString();
-      A1_G1_result[pos] = ch.toString();
-
-      if (ch == '\\') {
-        if (pos + 1 < len) {
-          nextCh = this.source.charAt(pos + 1);
-          if (nextCh == 'A') {
-            A0_G0_result[pos + 1] = "\uFFFF";
-            A0_G1_result[pos + 1] = "\uFFFF";
-            A1_G0_result[pos + 1] = "A";
-            A1_G1_result[pos + 1] = "A";
-          } else if (nextCh == 'G') {
-            A0_G0_result[pos + 1] = "\uFFFF";
-            A0_G1_result[pos + 1] = "G";
-            A1_G0_result[pos + 1] = "\uFFFF";
-            A1_G1_result[pos + 1] = "G";
-          } else {
-            A0_G0_result[pos + 1] = nextCh.toString();
-            A0_G1_result[pos + 1] = nextCh.toString();
-            A1_G0_result[pos + 1] = nextCh.toString();
-            A1_G1_result[pos + 1] = nextCh.toString();
-          }
-          pos++;
+    char[] A0_G0_result = this.source.toCharArray();
+    char[] A0_G1_result = this.hasAnchorG ? A0_G0_result.clone() : A0_G0_result;
+    char[] A1_G0_result = this.hasAnchorA ? A0_G0_result.clone() : A0_G0_result;
+    char[] A1_G1_result = this.hasAnchorG ? A1_G0_result.clone() : A1_G0_result;
+
+    for (int pos = 0, len = A0_G0_result.length; pos + 1 < len; pos++) {
+      if (A0_G0_result[pos] == '\\') {
+        char nextCh = A0_G0_result[pos + 1];
+        if (nextCh == 'A') {
+          A0_G0_result[pos + 1] = '\uFFFF';
+          A0_G1_result[pos + 1] = '\uFFFF';
+        } else if (nextCh == 'G') {
+          A0_G0_result[pos + 1] = '\uFFFF';
+          A1_G0_result[pos + 1] = '\uFFFF';
         }
+        pos++;
       }
     }
 
     IRegExpSourceAnchorCache res = new IRegExpSourceAnchorCache();
-    res.A0_G0 = String.join("", A0_G0_result);
-    res.A0_G1 = String.join("", A0_G1_result);
-    res.A1_G0 = String.join("", A1_G0_result);
-    res.A1_G1 = String.join("", A1_G1_result);
+    res.A0_G0 = new String(A0_G0_result);
+    res.A0_G1 = this.hasAnchorG ? new String(A0_G1_result) : res.A0_G0;
+    res.A1_G0 = this.hasAnchorA ? new String(A1_G0_result) : res.A0_G0;
+    res.A1_G1 = this.hasAnchorG ? (this.hasAnchorA ? new String(A1_G1_result) : res.A0_G1) : res.A1_G0;
     return res;
   }
 
@@ -1,117 +1,213 @@
 package me.textmate.rule;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import me.oniguruma.OnigPrefilter;
 import me.oniguruma.OnigScanner;
 
+/**
+ * The compiled rules are created lazily and can be looked up from several threads: the lookup of an
+ * already compiled rule does not lock, compiling one locks the list. The patterns are all pushed
+ * before the list is shared, and are never changed after.
+ *
+ * With anchors, the variant for `allowA` and `allowG` is only compiled when it is used, and the
+ * variants that only differ by an anchor none of the patterns has share their compiled rule.
+ *
+ * An end or while pattern with back references is compiled once per text it is resolved to, see
+ * `compileWithSource`.
+ */
 public class RegExpSourceList {
+  private static final int MAX_SOURCE_RULES = 32;
+
   private final List<RegExpSource> _items;
   private boolean _hasAnchors;
-  private ICompiledRule _cached;
-  private IRegExpSourceListAnchorCache _anchorCache = new IRegExpSourceListAnchorCache();
+  private boolean _hasAnchorA;
+  private boolean _hasAnchorG;
+  private volatile ICompiledRule _cached;
+  private final IRegExpSourceListAnchorCache _anchorCache = new IRegExpSourceListAnchorCache();
+  /**
+   * The rules compiled by `compileWithSource`, by anchor variant and compiled source of the replaced
+   * pattern, see `_sourceKey`, and for each anchor variant the last one, that the next ones are derived
+   * from.
+   */
+  private LinkedHashMap<String, ICompiledRule> _sourceCache;
+  private final IRegExpSourceListAnchorCache _lastSourceRule = new IRegExpSourceListAnchorCache();
   // private final String[] _cachedSources;
 
   public RegExpSourceList() {
     this._items = new ArrayList<RegExpSource>();
     this._hasAnchors = false;
+    this._hasAnchorA = false;
+    this._hasAnchorG = false;
     this._cached = null;
     // this._cachedSources = null;
-
-    this._anchorCache.A0_G0 = null;
-    this._anchorCache.A0_G1 = null;
-    this._anchorCache.A1_G0 = null;
-    this._anchorCache.A1_G1 = null;
   }
 
   public void push(RegExpSource item) {
     this._items.add(item);
-    this._hasAnchors = this._hasAnchors || item.hasAnchor;
+    this._addAnchors(item);
   }
 
   public void unshift(RegExpSource item) {
     this._items.add(0, item);
+    this._addAnchors(item);
+  }
+
+  private void _addAnchors(RegExpSource item) {
     this._hasAnchors = this._hasAnchors || item.hasAnchor;
+    this._hasAnchorA = this._hasAnchorA || item.hasAnchorA;
+    this._hasAnchorG = this._hasAnchorG || item.hasAnchorG;
   }
 
   public int length() {
     return this._items.size();
   }
 
-  public void setSource(int index, String newSource) {
-    if (this._items.get(index).source != newSource) {
-      // bust the cache
-      this._cached = null;
-      this._anchorCache.A0_G0 = null;
-      this._anchorCache.A0_G1 = null;
-      this._anchorCache.A1_G0 = null;
-      this._anchorCache.A1_G1 = null;
-      this._items.get(index).setSource(newSource);
-    }
-  }
-
   public ICompiledRule compile(IRuleRegistry grammar, boolean allowA, boolean allowG) {
     if (!this._hasAnchors) {
-      if (this._cached == null) {
-        String[] regExps = new String[this.length()];
-        for (int i = 0; i < this.length(); i++) {
-          regExps[i] = this._items.get(i).source;
-        }
-        this._cached = new ICompiledRule();
-        this._cached.scanner = new OnigScanner(regExps);
-        this._cached.rules = new int[this.length()];
-        for (int i = 0; i < this.length(); i++) {
-          this._cached.rules[i] = this._items.get(i).ruleId;
-        }
-        this._cached.debugRegExps = regExps;
+      ICompiledRule cached = this._cached;
+      if (cached != null) {
+        return cached;
       }
-      return this._cached;
-    } else {
-      if (this._anchorCache.A0_G0 == null)
-        this._anchorCache.A0_G0 = (allowA == false && allowG == false ? this._resolveAnchors(allowA, allowG) : null);
-      if (this._anchorCache.A0_G1 == null)
-        this._anchorCache.A0_G1 = (allowA == false && allowG == true ? this._resolveAnchors(allowA, allowG) : null);
-      if (this._anchorCache.A1_G0 == null)
-        this._anchorCache.A1_G0 = (allowA == true && allowG == false ? this._resolveAnchors(allowA, allowG) : null);
-      if (this._anchorCache.A1_G1 == null)
-        this._anchorCache.A1_G1 = (allowA == true && allowG == true ? this._resolveAnchors(allowA, allowG) : null);
-      if (allowA) {
-        if (allowG) {
-          return this._anchorCache.A1_G1;
-        } else {
-          return this._anchorCache.A1_G0;
-        }
-      } else {
-        if (allowG) {
-          return this._anchorCache.A0_G1;
-        } else {
-          return this._anchorCache.A0_G0;
+      synchronized (this) {
+        if (this._cached == null) {
+          this._cached = this._createCompiledRule(grammar, false, false);
         }
+        return this._cached;
+      }
+    }
+
+    allowA = allowA && this._hasAnchorA;
+    allowG = allowG && this._hasAnchorG;
+    ICompiledRule cached = this._anchorCache.get(allowA, allowG);
+    if (cached != null) {
+      return cached;
+    }
+    synchronized (this) {
+      cached = this._anchorCache.get(allowA, allowG);
+      if (cached == null) {
+        cached = this._createCompiledRule(grammar, allowA, allowG);
+        this._anchorCache.set(allowA, allowG, cached);
       }
+      return cached;
+    }
+  }
+
+  /**
+   * Compiles the list with the pattern at `index` replaced by `source`, an end or while pattern whose
+   * back references are resolved. The last `MAX_SOURCE_RULES` rules are kept by anchor variant and
+   * source, and a new one shares the compiled regular expressions of the other patterns with the previous one: only
+   * `source` is compiled.
+   */
+  public synchronized ICompiledRule compileWithSource(IRuleRegistry grammar, int index, String source, boolean allowA,
+      boolean allowG) {
+    if (this._sourceCache == null) {
+      this._sourceCache = new LinkedHashMap<String, ICompiledRule>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ICompiledRule> eldest) {
+          return this.size() > MAX_SOURCE_RULES;
+        }
+      };
+    }
+    allowA = allowA && this._hasAnchorA;
+    allowG = allowG && this._hasAnchorG;
+    String regExp = new RegExpSource(source, this._items.get(index).ruleId).resolveAnchors(allowA, allowG);
+    String key = RegExpSourceList._sourceKey(allowA, allowG, regExp);
+    ICompiledRule rule = this._sourceCache.get(key);
+    if (rule != null) {
+      return rule;
     }
 
+    ICompiledRule last = this._lastSourceRule.get(allowA, allowG);
+    if (last == null) {
+      rule = this._createCompiledRule(grammar, allowA, allowG, index, regExp);
+    } else {
+      long start = System.nanoTime();
+      String[] regExps = last.debugRegExps.clone();
+      regExps[index] = regExp;
+      rule = new ICompiledRule(new OnigScanner(last.scanner, index, regExp), last.rules, regExps);
+      grammar.getCompileStats().add(1, this._hasAnchors, System.nanoTime() - start);
+    }
+    this._sourceCache.put(key, rule);
+    this._lastSourceRule.set(allowA, allowG, rule);
+    return rule;
   }
 
-  private ICompiledRule _resolveAnchors(boolean allowA, boolean allowG) {
+  /**
+   * The other patterns of a rule compiled by `compileWithSource` are resolved for `allowA` and `allowG`,
+   * so the rule can only be reused for the same variant.
+   */
+  private static String _sourceKey(boolean allowA, boolean allowG, String regExp) {
+    return (allowA ? "A1" : "A0") + (allowG ? "G1" : "G0") + regExp;
+  }
+
+  private ICompiledRule _createCompiledRule(IRuleRegistry grammar, boolean allowA, boolean allowG) {
+    return this._createCompiledRule(grammar, allowA, allowG, -1, null);
+  }
+
+  /**
+   * Compiles the list, with the pattern at `index` replaced by `regExp` if `index` is not -1.
+   */
+  private ICompiledRule _createCompiledRule(IRuleRegistry grammar, boolean allowA, boolean allowG, int index,
+      String regExp) {
+    long start = System.nanoTime();
     String[] regExps = new String[this.length()];
     for (int i = 0; i < this.length(); i++) {
-      regExps[i] = this._items.get(i).resolveAnchors(allowA, allowG);
+      regExps[i] = i == index ? regExp : this._items.get(i).resolveAnchors(allowA, allowG);
     }
 
-    ICompiledRule rule = new ICompiledRule();
-    rule.scanner = new OnigScanner(regExps);
-    rule.rules = new int[this.length()];
+    int[] rules = new int[this.length()];
     for (int i = 0; i < this.length(); i++) {
-      rule.rules[i] = this._items.get(i).ruleId;
+      rules[i] = this._items.get(i).ruleId;
     }
-    rule.debugRegExps = regExps;
+    ICompiledRule rule = new ICompiledRule(
+        new OnigScanner(regExps, createPrefilters(regExps), grammar.useCombinedScanners()), rules, regExps);
+    grammar.getCompileStats().add(regExps.length, this._hasAnchors, System.nanoTime() - start);
     return rule;
   }
+
+  /**
+   * The prefilters let the scanner skip the regular expressions that cannot match early enough,
+   * without running them.
+   */
+  private static OnigPrefilter[] createPrefilters(String[] regExps) {
+    OnigPrefilter[] prefilters = new OnigPrefilter[regExps.length];
+    for (int i = 0; i < regExps.length; i++) {
+      prefilters[i] = OnigPrefilter.create(regExps[i]);
+    }
+    return prefilters;
+  }
 }
 
 class IRegExpSourceListAnchorCache {
-  public ICompiledRule A0_G0;
-  public ICompiledRule A0_G1;
-  public ICompiledRule A1_G0;
-  public ICompiledRule A1_G1;
+  public volatile ICompiledRule A0_G0;
+  public volatile ICompiledRule A0_G1;
+  public volatile ICompiledRule A1_G0;
+  public volatile ICompiledRule A1_G1;
+
+  public ICompiledRule get(boolean allowA, boolean allowG) {
+    if (allowA) {
+      return allowG ? this.A1_G1 : this.A1_G0;
+    }
+    return allowG ? this.A0_G1 : this.A0_G0;
+  }
+
+  public void set(boolean allowA, boolean allowG, ICompiledRule rule) {
+    if (allowA) {
+      if (allowG) {
+        this.A1_G1 = rule;
+      } else {
+        this.A1_G0 = rule;
+      }
+    } else if (allowG) {
+      this.A0_G1 = rule;
+    } else {
+      this.A0_G0 = rule;
+    }
+  }
 }
\ No newline at end of file
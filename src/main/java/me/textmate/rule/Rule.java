@@ -5,6 +5,12 @@ import me.textmate.types.ILocation;
 import me.textmate.utils.RegexSource;
 
 public abstract class Rule {
+  /**
+   * A cached scope id that is not resolved yet: distinct from every id, including -1 for no name and
+   * `ScopeTable.UNINTERNED`.
+   */
+  private static final int UNRESOLVED = Integer.MIN_VALUE;
+
   public final ILocation location;
   public final int id;
 
@@ -14,6 +20,12 @@ public abstract class Rule {
   private final boolean _contentNameIsCapturing;
   private final String _contentName;
 
+  /**
+   * The scope ids of the names without captures, resolved on first use.
+   */
+  private volatile int _nameScopeId = UNRESOLVED;
+  private volatile int _contentNameScopeId = UNRESOLVED;
+
   public Rule(ILocation location, int id, String name, String contentName) {
     this.location = location;
     this.id = id;
@@ -42,6 +54,37 @@ public abstract class Rule {
     return RegexSource.replaceCaptures(this._contentName, lineText, captureIndices);
   }
 
+  /**
+   * Returns the scope id of `getName`, see `IRuleRegistry.getScopeId`. A name built from captures may
+   * have no id, see `IRuleRegistry.getDynamicScopeId`.
+   */
+  public int getNameScopeId(IRuleRegistry grammar, String lineText, IOnigCaptureIndex[] captureIndices) {
+    if (this._nameIsCapturing) {
+      return grammar.getDynamicScopeId(RegexSource.replaceCaptures(this._name, lineText, captureIndices));
+    }
+    int id = this._nameScopeId;
+    if (id == UNRESOLVED) {
+      id = grammar.getScopeId(this._name);
+      this._nameScopeId = id;
+    }
+    return id;
+  }
+
+  /**
+   * Returns the scope id of `getContentName`, like `getNameScopeId`.
+   */
+  public int getContentNameScopeId(IRuleRegistry grammar, String lineText, IOnigCaptureIndex[] captureIndices) {
+    if (this._contentNameIsCapturing) {
+      return grammar.getDynamicScopeId(RegexSource.replaceCaptures(this._contentName, lineText, captureIndices));
+    }
+    int id = this._contentNameScopeId;
+    if (id == UNRESOLVED) {
+      id = grammar.getScopeId(this._contentName);
+      this._contentNameScopeId = id;
+    }
+    return id;
+  }
+
   public abstract void collectPatternsRecursive(IRuleRegistry grammar, RegExpSourceList out, boolean isFirst);
 
   public abstract ICompiledRule compile(IRuleRegistry grammar, String endRegexSource, boolean allowA, boolean allowG);
@@ -0,0 +1,129 @@
+package me.textmate.theme;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link ThemeTrieElement} trie flattened into arrays, built once per theme. The children of a node
+ * are a range of segments sorted by name, and every node has its rules already sorted by specificity,
+ * so `match` does not allocate.
+ *
+ * It is immutable: the returned rule arrays are shared and must not be changed.
+ */
+class CompiledThemeTrie {
+  /**
+   * The children of node `i` are the nodes `_childNodes[_childStart[i]]` to
+   * `_childNodes[_childStart[i + 1] - 1]`, named `_childSegments` at the same indices.
+   */
+  private final int[] _childStart;
+  private final String[] _childSegments;
+  private final int[] _childNodes;
+  private final ThemeTrieElementRule[][] _rules;
+
+  private CompiledThemeTrie(int[] childStart, String[] childSegments, int[] childNodes,
+      ThemeTrieElementRule[][] rules) {
+    this._childStart = childStart;
+    this._childSegments = childSegments;
+    this._childNodes = childNodes;
+    this._rules = rules;
+  }
+
+  /**
+   * Flattens the trie of `root`, breadth first: the children of a node are numbered together.
+   */
+  static CompiledThemeTrie compile(ThemeTrieElement root) {
+    List<ThemeTrieElement> nodes = new ArrayList<ThemeTrieElement>();
+    List<String> childSegments = new ArrayList<String>();
+    List<Integer> childNodes = new ArrayList<Integer>();
+    nodes.add(root);
+    int[] childStart = new int[1];
+    for (int i = 0; i < nodes.size(); i++) {
+      if (i + 1 >= childStart.length) {
+        childStart = Arrays.copyOf(childStart, childStart.length * 2 + 2);
+      }
+      childStart[i] = childSegments.size();
+
+      Map<String, ThemeTrieElement> children = nodes.get(i).getChildren();
+      String[] segments = children.keySet().toArray(new String[0]);
+      Arrays.sort(segments);
+      for (String segment : segments) {
+        childSegments.add(segment);
+        childNodes.add(nodes.size());
+        nodes.add(children.get(segment));
+      }
+    }
+    childStart = Arrays.copyOf(childStart, nodes.size() + 1);
+    childStart[nodes.size()] = childSegments.size();
+
+    ThemeTrieElementRule[][] rules = new ThemeTrieElementRule[nodes.size()][];
+    for (int i = 0; i < rules.length; i++) {
+      rules[i] = nodes.get(i).getSortedRules();
+    }
+    int[] childNodeArray = new int[childNodes.size()];
+    for (int i = 0; i < childNodeArray.length; i++) {
+      childNodeArray[i] = childNodes.get(i);
+    }
+    return new CompiledThemeTrie(childStart, childSegments.toArray(new String[0]), childNodeArray, rules);
+  }
+
+  /**
+   * Returns the rules of the deepest node named by a prefix of the segments of `scope`, like
+   * `ThemeTrieElement.match`.
+   */
+  ThemeTrieElementRule[] match(String scope) {
+    int node = 0;
+    int start = 0;
+    int length = scope.length();
+    while (start < length) {
+      int dotIndex = scope.indexOf('.', start);
+      int end = dotIndex == -1 ? length : dotIndex;
+      int child = this._findChild(node, scope, start, end);
+      if (child == -1) {
+        break;
+      }
+      node = child;
+      if (dotIndex == -1) {
+        break;
+      }
+      start = dotIndex + 1;
+    }
+    return this._rules[node];
+  }
+
+  private int _findChild(int node, String scope, int start, int end) {
+    int low = this._childStart[node];
+    int high = this._childStart[node + 1] - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = CompiledThemeTrie._compare(this._childSegments[mid], scope, start, end);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return this._childNodes[mid];
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Compares `segment` with `scope.substring(start, end)`, like `String.compareTo`.
+   */
+  private static int _compare(String segment, String scope, int start, int end) {
+    int length = Math.min(segment.length(), end - start);
+    for (int i = 0; i < length; i++) {
+      int cmp = segment.charAt(i) - scope.charAt(start + i);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return segment.length() - (end - start);
+  }
+
+  int size() {
+    return this._rules.length;
+  }
+}
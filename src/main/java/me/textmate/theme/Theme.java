@@ -1,16 +1,18 @@
 package me.textmate.theme;
 
 import java.util.List;
-import java.util.Map;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 
 import me.textmate.main.IRawTheme;
 import me.textmate.main.IRawThemeSetting;
 
+/**
+ * A resolved theme. Its trie is compiled once into a {@link CompiledThemeTrie}: the theme is immutable,
+ * and `match` can be used by several threads without locking or allocating.
+ */
 public class Theme {
   public static Theme createFromRawTheme(IRawTheme source) {
     return createFromParsedTheme(parseTheme(source));
@@ -21,15 +23,13 @@ public class Theme {
   }
 
   private final ColorMap _colorMap;
-  private final ThemeTrieElement _root;
+  private final CompiledThemeTrie _trie;
   private final ThemeTrieElementRule _defaults;
-  private Map<String, ThemeTrieElementRule[]> _cache;
 
   public Theme(ColorMap colorMap, ThemeTrieElementRule defaults, ThemeTrieElement root) {
     this._colorMap = colorMap;
-    this._root = root;
+    this._trie = CompiledThemeTrie.compile(root);
     this._defaults = defaults;
-    this._cache = new HashMap<String, ThemeTrieElementRule[]>();
   }
 
   public String[] getColorMap() {
@@ -40,11 +40,12 @@ public class Theme {
     return this._defaults;
   }
 
+  /**
+   * Returns the rules for `scopeName`, the most specific first. The array is shared and must not be
+   * changed.
+   */
   public ThemeTrieElementRule[] match(String scopeName) {
-    if (!this._cache.containsKey(scopeName)) {
-      this._cache.put(scopeName, this._root.match(scopeName));
-    }
-    return this._cache.get(scopeName);
+    return this._trie.match(scopeName);
   }
 
   public static ParsedThemeRule[] parseTheme(IRawTheme source) {
@@ -69,7 +70,7 @@ public class Theme {
       }
 
       int fontStyle = FontStyle.NotSet;
-      if (entry.settings.fontStyle == null) {
+      if (entry.settings.fontStyle != null) {
         fontStyle = FontStyle.None;
 
         String[] segments = entry.settings.fontStyle.split(" ");
@@ -100,15 +101,15 @@ public class Theme {
         String[] segments = _scope.split(" ");
 
         String scope = segments[segments.length - 1];
-        List<String> parentScopes = null;
+        String[] parentScopes = null;
         if (segments.length > 1) {
-          parentScopes = Arrays.asList(segments);
-          parentScopes.remove(parentScopes.size() - 1);
-          Collections.reverse(parentScopes);
+          List<String> parentScopeList = new ArrayList<String>(Arrays.asList(segments));
+          parentScopeList.remove(parentScopeList.size() - 1);
+          Collections.reverse(parentScopeList);
+          parentScopes = parentScopeList.toArray(new String[0]);
         }
 
-        result
-            .add(new ParsedThemeRule(scope, parentScopes.toArray(new String[0]), i, fontStyle, foreground, background));
+        result.add(new ParsedThemeRule(scope, parentScopes, i, fontStyle, foreground, background));
       }
     }
 
@@ -155,7 +156,7 @@ public class Theme {
       }
     });
 
-    List<ParsedThemeRule> parsedThemeRuleList = Arrays.asList(parsedThemeRules);
+    List<ParsedThemeRule> parsedThemeRuleList = new ArrayList<ParsedThemeRule>(Arrays.asList(parsedThemeRules));
 
     // Determine defaults
     int defaultFontStyle = FontStyle.None;
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 
 public class ThemeTrieElement {
   // _themeTrieElementBrand: void;
@@ -14,14 +15,14 @@ public class ThemeTrieElement {
 
   public ThemeTrieElement(ThemeTrieElementRule mainRule, ThemeTrieElementRule[] rulesWithParentScopes) {
     this._mainRule = mainRule;
-    this._rulesWithParentScopes = Arrays.asList(rulesWithParentScopes);
+    this._rulesWithParentScopes = new ArrayList<ThemeTrieElementRule>(Arrays.asList(rulesWithParentScopes));
     this._children = new ITrieChildrenMap();
   }
 
   public ThemeTrieElement(ThemeTrieElementRule mainRule, ThemeTrieElementRule[] rulesWithParentScopes,
       ITrieChildrenMap children) {
     this._mainRule = mainRule;
-    this._rulesWithParentScopes = Arrays.asList(rulesWithParentScopes);
+    this._rulesWithParentScopes = new ArrayList<ThemeTrieElementRule>(Arrays.asList(rulesWithParentScopes));
     this._children = children;
   }
 
@@ -44,11 +45,25 @@ public class ThemeTrieElement {
     return arr;
   }
 
+  Map<String, ThemeTrieElement> getChildren() {
+    return this._children;
+  }
+
+  /**
+   * Returns the rules of this element, the most specific first.
+   */
+  ThemeTrieElementRule[] getSortedRules() {
+    List<ThemeTrieElementRule> rules = new ArrayList<ThemeTrieElementRule>();
+    rules.add(this._mainRule);
+    rules.addAll(this._rulesWithParentScopes);
+    return ThemeTrieElement._sortBySpecificity(rules.toArray(new ThemeTrieElementRule[0]));
+  }
+
   public ThemeTrieElementRule[] match(String scope) {
     if (scope.isEmpty()) {
-      List<ThemeTrieElementRule> rules = Arrays
-          .asList(this._rulesWithParentScopes.toArray(new ThemeTrieElementRule[0]));
-      rules.add(0, this._mainRule);
+      List<ThemeTrieElementRule> rules = new ArrayList<ThemeTrieElementRule>();
+      rules.add(this._mainRule);
+      rules.addAll(this._rulesWithParentScopes);
       return ThemeTrieElement._sortBySpecificity(rules.toArray(new ThemeTrieElementRule[0]));
     }
 
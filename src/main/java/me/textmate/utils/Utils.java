@@ -5,6 +5,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import me.textmate.types.IRawRepository;
 
@@ -35,6 +37,27 @@ public class Utils {
     return obj;
   }
 
+  /**
+   * Splits `text` into lines, without their `\n`, `\r\n` or `\r` terminator. A text that ends with a
+   * line terminator ends with an empty line.
+   */
+  public static List<String> splitLines(CharSequence text) {
+    List<String> lines = new ArrayList<String>();
+    int start = 0;
+    for (int i = 0, len = text.length(); i < len; i++) {
+      char ch = text.charAt(i);
+      if (ch == '\n' || ch == '\r') {
+        lines.add(text.subSequence(start, i).toString());
+        if (ch == '\r' && i + 1 < len && text.charAt(i + 1) == '\n') {
+          i++;
+        }
+        start = i + 1;
+      }
+    }
+    lines.add(text.subSequence(start, text.length()).toString());
+    return lines;
+  }
+
   public static IRawRepository mergeObjects(IRawRepository... sources) {
     IRawRepository target = new IRawRepository();
     for (IRawRepository source : sources) {
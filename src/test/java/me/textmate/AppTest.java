@@ -1,14 +1,41 @@
 package me.textmate;
 
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import me.oniguruma.IOnigNextMatchResult;
+import me.oniguruma.OnigPrefilter;
+import me.oniguruma.OnigRegExp;
+import me.oniguruma.OnigScanner;
+import me.oniguruma.OnigString;
+import me.oniguruma.RegexCache;
+import me.textmate.grammar.Grammar;
+import me.textmate.grammar.Injection;
+import me.textmate.grammar.ScopeListElement;
+import me.textmate.grammar.ScopeTable;
 import me.textmate.grammar.StackElement;
+import me.textmate.grammar.StackElementMetadata;
 import me.textmate.main.*;
+import me.textmate.rule.CompileStats;
+import me.textmate.rule.ICompiledRule;
+import me.textmate.rule.IRuleRegistry;
+import me.textmate.rule.RegExpSource;
+import me.textmate.rule.RegExpSourceList;
+import me.textmate.rule.Rule;
+import me.textmate.theme.FontStyle;
+import me.textmate.theme.ParsedThemeRule;
+import me.textmate.theme.Theme;
+import me.textmate.theme.ThemeTrieElementRule;
 
 /**
  * Unit test for simple App.
@@ -93,6 +120,752 @@ public class AppTest
         printTokenizeLines(grammar, lines);
     }
 
+    private static IToken findToken(IToken[] tokens, int startIndex) {
+        for (IToken token : tokens) {
+            if (token.startIndex == startIndex) {
+                return token;
+            }
+        }
+        return null;
+    }
+
+    private static void assertToken(IToken[] tokens, int startIndex, int endIndex, String lastScope) {
+        IToken token = findToken(tokens, startIndex);
+        assertNotNull("no token at " + startIndex, token);
+        assertEquals(endIndex, token.endIndex);
+        assertEquals(lastScope, token.scopes[token.scopes.length - 1]);
+    }
+
+    public void testNonAsciiOffsets() throws Exception
+    {
+        Registry registry = new Registry();
+        IGrammar grammar = registry.loadGrammarFromPathSync("test-cases/JavaScript.tmLanguage.json");
+
+        // CJK characters take 3 bytes in UTF-8
+        IToken[] tokens = grammar.tokenizeLine("const s = \"\u65e5\u672c\u8a9e\"; let x = 1;", null).tokens;
+        assertToken(tokens, 11, 14, "string.quoted.double.js");
+        assertToken(tokens, 14, 15, "punctuation.definition.string.end.js");
+        assertToken(tokens, 17, 20, "storage.type.js");
+
+        // emojis are surrogate pairs in UTF-16 and take 4 bytes in UTF-8
+        tokens = grammar.tokenizeLine("var e = '\ud83d\ude00\ud83d\ude00'; // \u00fc", null).tokens;
+        assertToken(tokens, 9, 13, "string.quoted.single.js");
+        assertToken(tokens, 16, 18, "punctuation.definition.comment.js");
+    }
+
+    public void testTokenBuffer() throws Exception
+    {
+        Registry registry = new Registry();
+        IGrammar grammar = registry.loadGrammarFromPathSync("test-cases/JavaScript.tmLanguage.json");
+        List<String> lines = Arrays.asList(new String[] { "/* a", "b */ var x = 1;", "", "function f() {}" });
+
+        TokenBuffer buffer = new TokenBuffer(2);
+        StackElement state = null;
+        StackElement bufferState = null;
+        for (String line : lines) {
+            ITokenizeLineResult2 r = grammar.tokenizeLine2(line, state);
+            state = r.ruleStack;
+            bufferState = grammar.tokenizeLine2(line, bufferState, buffer);
+            assertTrue(Arrays.equals(r.tokens, buffer.toArray()));
+            assertEquals(r.tokens.length / 2, buffer.tokenCount());
+        }
+    }
+
+    public void testTokenizeDocument() throws Exception
+    {
+        Registry registry = new Registry();
+        IGrammar grammar = registry.loadGrammarFromPathSync("test-cases/JavaScript.tmLanguage.json");
+        String text = "/* a\r\nb */ var x = 1;\n\rfunction f() {\n  return `${x}`;\r}\n";
+
+        ITokenizeDocumentResult document = grammar.tokenizeDocument(text);
+        List<String> lines = Arrays.asList(new String[] { "/* a", "b */ var x = 1;", "", "function f() {",
+            "  return `${x}`;", "}", "" });
+        assertEquals(lines.size(), document.lineCount);
+
+        StackElement state = null;
+        for (int i = 0; i < lines.size(); i++) {
+            ITokenizeLineResult2 r = grammar.tokenizeLine2(lines.get(i), state);
+            state = r.ruleStack;
+            assertTrue(Arrays.equals(r.tokens, document.getLineTokens(i)));
+            assertTrue(state.equals(document.ruleStacks[i]));
+        }
+    }
+
+    public void testParallelTokenizer() throws Exception
+    {
+        String sample = new String(Files.readAllBytes(Paths.get("test-cases/sample.js")), "UTF-8");
+        List<String> documents = new ArrayList<String>();
+        for (int i = 0; i < 8; i++) {
+            documents.add(sample.substring(i * 100));
+        }
+
+        // the rules are compiled concurrently by the first tokenizations
+        IGrammar shared = new Registry().loadGrammarFromPathSync("test-cases/JavaScript.tmLanguage.json");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<ITokenizeDocumentResult> results;
+        try {
+            results = new ParallelTokenizer(shared, executor).tokenizeDocuments(documents);
+        } finally {
+            executor.shutdown();
+        }
+
+        IGrammar grammar = new Registry().loadGrammarFromPathSync("test-cases/JavaScript.tmLanguage.json");
+        for (int i = 0; i < documents.size(); i++) {
+            ITokenizeDocumentResult expected = grammar.tokenizeDocument(documents.get(i));
+            assertEquals(expected.lineCount, results.get(i).lineCount);
+            for (int line = 0; line < expected.lineCount; line++) {
+                assertTrue(Arrays.equals(expected.getLineTokens(line), results.get(i).getLineTokens(line)));
+            }
+        }
+    }
+
+    public void testParallelTokenizeDocument() throws Exception
+    {
+        // the chunks start in the right state, then in a comment which ends in the middle of a chunk
+        StringBuilder code = new StringBuilder();
+        StringBuilder comment = new StringBuilder("/*\n");
+        for (int i = 0; i < 3000; i++) {
+            code.append("function f(a) { return a + 'b'; }\n");
+            comment.append("var a = 'b';\n");
+        }
+        comment.append("*/\n").append(code);
+
+        IGrammar grammar = new Registry().loadGrammarFromPathSync("test-cases/JavaScript.tmLanguage.json");
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            ParallelTokenizer tokenizer = new ParallelTokenizer(grammar, pool);
+            for (String text : new String[] { code.toString(), comment.toString() }) {
+                ITokenizeDocumentResult expected = grammar.tokenizeDocument(text);
+                ITokenizeDocumentResult result = tokenizer.tokenizeDocument(text);
+                assertEquals(expected.lineCount, result.lineCount);
+                for (int line = 0; line < expected.lineCount; line++) {
+                    assertTrue(Arrays.equals(expected.getLineTokens(line), result.getLineTokens(line)));
+                    assertTrue(expected.ruleStacks[line].equals(result.ruleStacks[line]));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testInternedStates() throws Exception
+    {
+        IGrammar grammar = new Registry().loadGrammarFromPathSync("test-cases/JavaScript.tmLanguage.json");
+        StackElement a = grammar.tokenizeLine2("/* a", null).ruleStack;
+        StackElement b = grammar.tokenizeLine2("var x = 1; /* b", null).ruleStack;
+        assertSame(a, b);
+        assertSame(a.contentNameScopesList, b.contentNameScopesList);
+
+        StackElement c = grammar.tokenizeLine2("`${a", null).ruleStack;
+        assertFalse(a.equals(c));
+        assertSame(c, grammar.tokenizeLine2("x = `${a", null).ruleStack);
+        assertSame(a.parent, c.parent.parent);
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testDeprecatedEnterPos() throws Exception
+    {
+        IGrammar grammar = new Registry().loadGrammarFromPathSync("test-cases/JavaScript.tmLanguage.json");
+        StackElement a = grammar.tokenizeLine2("/* a", null).ruleStack;
+        a.reset();
+        assertEquals(-1, a.getEnterPos());
+        StackElement b = a.parent.push(a.ruleId, 3, a.endRule, a.nameScopesList, a.contentNameScopesList);
+        assertTrue(a.equals(b));
+        assertSame(a, grammar.tokenizeLine2(" b", b).ruleStack);
+    }
+
+    public void testLineCache() throws Exception
+    {
+        String text = "var a = 1;\nvar a = 1;\n/* a\nvar a = 1;\n*/\nvar a = 1;\n}\n}\n";
+        IGrammar grammar = new Registry().loadGrammarFromPathSync("test-cases/JavaScript.tmLanguage.json");
+        ITokenizeDocumentResult expected = grammar.tokenizeDocument(text);
+
+        grammar.setLineCacheSize(4);
+        ITokenizeDocumentResult result = grammar.tokenizeDocument(text);
+        ILineCacheStats cache = grammar.getLineCache();
+        // the last `var a = 1;` and `}` start in the same state as the second ones
+        assertEquals(2, cache.getHits());
+        assertEquals(7, cache.getMisses());
+        assertEquals(4, cache.size());
+        for (int line = 0; line < expected.lineCount; line++) {
+            assertTrue(Arrays.equals(expected.getLineTokens(line), result.getLineTokens(line)));
+            assertSame(expected.ruleStacks[line], result.ruleStacks[line]);
+        }
+    }
+
+    public void testAnchorVariants() throws Exception
+    {
+        final CompileStats stats = new CompileStats();
+        IRuleRegistry registry = new IRuleRegistry() {
+            public Rule getRule(int patternId) {
+                return null;
+            }
+
+            public Rule registerRule(Function<Integer, Rule> factory) {
+                return null;
+            }
+
+            public CompileStats getCompileStats() {
+                return stats;
+            }
+
+            public int getScopeId(String scopeName) {
+                return -1;
+            }
+
+            public int getDynamicScopeId(String scopeName) {
+                return -1;
+            }
+
+            public boolean useCombinedScanners() {
+                return false;
+            }
+        };
+        RegExpSourceList list = new RegExpSourceList();
+        list.push(new RegExpSource("\\Ga|b", 1));
+        list.push(new RegExpSource("c\\z", 2));
+
+        ICompiledRule rule = list.compile(registry, false, true);
+        assertEquals("\\Ga|b", rule.debugRegExps[0]);
+        assertEquals("c$(?!\\n)(?<!\\n)", rule.debugRegExps[1]);
+        assertEquals("\\\uFFFFa|b", list.compile(registry, false, false).debugRegExps[0]);
+        // no pattern has \A, so allowA does not matter
+        assertSame(rule, list.compile(registry, true, true));
+        assertEquals(2, stats.getAnchorVariantCount());
+        assertEquals(4, stats.getRegExpCount());
+    }
+
+    private IGrammar loadGrammar(String json) throws Exception
+    {
+        return loadGrammar(new Registry(), json);
+    }
+
+    private IGrammar loadGrammar(Registry registry, String json) throws Exception
+    {
+        java.io.File file = java.io.File.createTempFile("grammar", ".json");
+        file.deleteOnExit();
+        Files.write(file.toPath(), json.getBytes("UTF-8"));
+        return registry.loadGrammarFromPathSync(file.getPath());
+    }
+
+    public void testBackReferences() throws Exception
+    {
+        IGrammar grammar = loadGrammar("{ \"scopeName\": \"source.heredoc\", \"patterns\": ["
+            + "{ \"begin\": \"<<(\\\\S+)\", \"end\": \"^\\\\1$\", \"name\": \"string.heredoc\" } ] }");
+        List<IToken[]> tokens = tokenizeLines(grammar, Arrays.asList(new String[] {
+            "a <<EOF", "EOF;", "EOF", "b <<a.b", "axb", "a.b", "c <<EOF", "EOF", "d" }));
+        assertEquals("string.heredoc", tokens.get(1)[0].scopes[1]);
+        assertEquals("string.heredoc", tokens.get(2)[0].scopes[1]);
+        assertEquals(1, tokens.get(3)[0].scopes.length);
+        // `.` is escaped in the end pattern
+        assertEquals("string.heredoc", tokens.get(4)[0].scopes[1]);
+        assertEquals("string.heredoc", tokens.get(5)[0].scopes[1]);
+        assertEquals(1, tokens.get(8)[0].scopes.length);
+
+        // one rule per delimiter, the second one only compiles its end pattern
+        ICompileStats stats = grammar.getCompileStats();
+        long regExpCount = stats.getRegExpCount();
+        tokenizeLines(grammar, Arrays.asList(new String[] { "a <<EOS", "EOS" }));
+        assertEquals(regExpCount + 1, stats.getRegExpCount());
+        tokenizeLines(grammar, Arrays.asList(new String[] { "a <<EOS", "EOS" }));
+        assertEquals(regExpCount + 1, stats.getRegExpCount());
+    }
+
+    public void testBackReferencesWithAnchors() throws Exception
+    {
+        String[] ends = new String[] { "^\\\\1$", "^EOF$" };
+        for (String end : ends) {
+            IGrammar grammar = loadGrammar("{ \"scopeName\": \"source.heredoc\", \"patterns\": ["
+                + "{ \"begin\": \"<<(\\\\w+)\", \"end\": \"" + end + "\", \"name\": \"string.heredoc\","
+                + "\"patterns\": [ { \"match\": \"\\\\Gx\", \"name\": \"gx\" } ] } ] }");
+            List<IToken[]> tokens = tokenizeLines(grammar, Arrays.asList(new String[] { "a <<EOF", "xx", "EOF", "x" }));
+            // `\G` only matches where the begin pattern ended, not at the start of the next lines
+            IToken[] line = tokens.get(1);
+            assertEquals(end, 1, line.length);
+            assertEquals(end, 2, line[0].scopes.length);
+            assertEquals(end, "string.heredoc", line[0].scopes[1]);
+            assertEquals(end, 1, tokens.get(3)[0].scopes.length);
+        }
+    }
+
+    public void testInjections() throws Exception
+    {
+        IGrammar grammar = loadGrammar("{ \"scopeName\": \"source.t\", \"patterns\": ["
+            + "{ \"begin\": \"'\", \"end\": \"'\", \"name\": \"string.quoted.t\" },"
+            + "{ \"begin\": \"#\", \"end\": \"$\", \"name\": \"comment.line.t\" } ],"
+            + "\"injections\": {"
+            + "\"L:source.t string - comment, source.t comment.line\": { \"patterns\": ["
+            + "{ \"match\": \"TODO\", \"name\": \"keyword.todo.t\" } ] },"
+            + "\"source.t (meta | string.unquoted)\": { \"patterns\": ["
+            + "{ \"match\": \"x\", \"name\": \"keyword.x.t\" } ] } } }");
+        List<IToken[]> tokens = tokenizeLines(grammar, Arrays.asList(new String[] {
+            "TODO 'a TODO' # TODO", "'x'" }));
+        IToken[] line = tokens.get(0);
+        assertEquals(1, line[0].scopes.length);
+        // 'a
+        assertEquals("string.quoted.t", line[2].scopes[1]);
+        assertEquals(2, line[2].scopes.length);
+        assertEquals("keyword.todo.t", line[3].scopes[2]);
+        assertEquals("keyword.todo.t", line[line.length - 1].scopes[2]);
+        assertEquals("comment.line.t", line[line.length - 1].scopes[1]);
+        // `string.quoted` is not `string.unquoted`
+        assertEquals(2, tokens.get(1)[1].scopes.length);
+
+        // the injections of a scope list are only selected once
+        StackElement inString = grammar.tokenizeLine("'a", null).ruleStack;
+        Injection[] injections = ((Grammar) grammar).getInjections(inString);
+        assertEquals(1, injections.length);
+        assertSame(injections, ((Grammar) grammar).getInjections(grammar.tokenizeLine("'b", null).ruleStack));
+    }
+
+    public void testParallelBackReferences() throws Exception
+    {
+        IGrammar grammar = loadGrammar("{ \"scopeName\": \"source.heredoc\", \"patterns\": ["
+            + "{ \"begin\": \"<<(\\\\w+)\", \"end\": \"^\\\\1$\", \"name\": \"string.heredoc\" } ] }");
+        List<String> documents = new ArrayList<String>();
+        for (int i = 0; i < 16; i++) {
+            StringBuilder document = new StringBuilder();
+            for (int j = 0; j < 50; j++) {
+                String delimiter = "D" + ((i + j) % 40);
+                document.append("x <<").append(delimiter).append("\nD").append((i + j + 1) % 40).append("\n")
+                    .append(delimiter).append("\n");
+            }
+            documents.add(document.toString());
+        }
+
+        // each thread ends its heredocs with its own delimiters
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<ITokenizeDocumentResult> results;
+        try {
+            results = new ParallelTokenizer(grammar, executor).tokenizeDocuments(documents);
+        } finally {
+            executor.shutdown();
+        }
+        for (int i = 0; i < results.size(); i++) {
+            ITokenizeDocumentResult result = results.get(i);
+            for (int line = 0; line < 3 * 50; line++) {
+                StackElement state = result.ruleStacks[line];
+                if (line % 3 == 2) {
+                    assertNull(state.parent);
+                } else {
+                    assertEquals("^D" + ((i + line / 3) % 40) + "$", state.endRule);
+                }
+            }
+        }
+    }
+
+    public void testScopeTable() throws Exception
+    {
+        ScopeTable table = new ScopeTable();
+        int string = table.getId("string.quoted");
+        int both = table.getId("meta.tag string.quoted");
+        assertEquals(string, table.getId("string.quoted"));
+        assertEquals("meta.tag string.quoted", table.getName(both));
+        assertNull(table.getScopeIds(string));
+        assertTrue(Arrays.equals(new int[] { table.getId("meta.tag"), string }, table.getScopeIds(both)));
+        assertEquals(ScopeTable.NO_SCOPE, table.getId(null));
+
+        IGrammar grammar = new Registry().loadGrammarFromPathSync("test-cases/JavaScript.tmLanguage.json");
+        StackElement state = grammar.tokenizeLine2("/* a", null).ruleStack;
+        ScopeListElement scopes = state.contentNameScopesList;
+        assertEquals("comment.block.js", scopes.scope);
+        assertSame(scopes, scopes.parent.push((Grammar) grammar, scopes.scopeId));
+        assertSame(scopes, scopes.parent.push((Grammar) grammar, "comment.block.js"));
+    }
+
+    public void testTheme() throws Exception
+    {
+        Registry registry = new Registry();
+        IGrammar grammar = registry.loadGrammarFromPathSync("test-cases/JavaScript.tmLanguage.json");
+        int[] tokens = grammar.tokenizeLine2("var a = 'b';", null).tokens;
+        assertEquals(0, StackElementMetadata.getForeground(tokens[tokens.length - 1]));
+
+        IRawTheme theme = new IRawTheme();
+        theme.settings = new IRawThemeSetting[] { new IRawThemeSetting(), new IRawThemeSetting() };
+        theme.settings[0].settings = new IRawThemeSettingStyle();
+        theme.settings[0].settings.foreground = "#000000";
+        theme.settings[1].scope = new String[] { "string", "storage.type" };
+        theme.settings[1].settings = new IRawThemeSettingStyle();
+        theme.settings[1].settings.fontStyle = "italic bold";
+        theme.settings[1].settings.foreground = "#ff0000";
+        registry.setTheme(theme);
+
+        String[] colorMap = registry.getColorMap();
+        tokens = grammar.tokenizeLine2("var a = 'b';", null).tokens;
+        // `var`, ` a = `, `'b'`, `;`
+        assertEquals(8, tokens.length);
+        for (int i = 1; i < tokens.length; i += 2) {
+            boolean red = i == 1 || i == 5;
+            assertEquals(red ? "#FF0000" : "#000000", colorMap[StackElementMetadata.getForeground(tokens[i])]);
+            assertEquals(red ? FontStyle.Italic | FontStyle.Bold : FontStyle.None,
+                StackElementMetadata.getFontStyle(tokens[i]));
+        }
+    }
+
+    public void testParseTheme() throws Exception
+    {
+        IRawTheme theme = new IRawTheme();
+        theme.settings = new IRawThemeSetting[] { new IRawThemeSetting(), new IRawThemeSetting() };
+        theme.settings[0].scope = new String[] { "comment" };
+        theme.settings[0].settings = new IRawThemeSettingStyle();
+        theme.settings[0].settings.foreground = "#00ff00";
+        theme.settings[1].scope = new String[] { "source.t meta.group string" };
+        theme.settings[1].settings = new IRawThemeSettingStyle();
+        theme.settings[1].settings.fontStyle = "italic underline";
+
+        ParsedThemeRule[] rules = Theme.parseTheme(theme);
+        assertEquals(2, rules.length);
+        assertEquals("comment", rules[0].scope);
+        assertNull(rules[0].parentScopes);
+        assertEquals(FontStyle.NotSet, rules[0].fontStyle);
+        assertEquals("string", rules[1].scope);
+        assertTrue(Arrays.equals(new String[] { "meta.group", "source.t" }, rules[1].parentScopes));
+        assertEquals(FontStyle.Italic | FontStyle.Underline, rules[1].fontStyle);
+    }
+
+    public void testEmbeddedLanguages() throws Exception
+    {
+        IEmbeddedLanguagesMap embeddedLanguages = new IEmbeddedLanguagesMap();
+        embeddedLanguages.put("source.css", 2);
+        Grammar grammar = (Grammar) new Registry().loadGrammarFromPathSync("test-cases/JavaScript.tmLanguage.json", 1,
+            embeddedLanguages);
+        assertEquals(2, grammar.getMetadataForScope("source.css").languageId);
+        assertEquals(2, grammar.getMetadataForScope("source.css.embedded.html").languageId);
+        assertEquals(0, grammar.getMetadataForScope("source.cssx").languageId);
+        assertEquals(0, grammar.getMetadataForScope("meta.source.css").languageId);
+    }
+
+    public void testDynamicScopes() throws Exception
+    {
+        Registry registry = new Registry();
+        IRawTheme theme = new IRawTheme();
+        theme.settings = new IRawThemeSetting[] { new IRawThemeSetting(), new IRawThemeSetting(), new IRawThemeSetting() };
+        theme.settings[0].settings = new IRawThemeSettingStyle();
+        theme.settings[0].settings.foreground = "#000000";
+        theme.settings[1].scope = new String[] { "entity.name.tag" };
+        theme.settings[1].settings = new IRawThemeSettingStyle();
+        theme.settings[1].settings.foreground = "#ff0000";
+        theme.settings[2].scope = new String[] { "meta.group entity.name.tag" };
+        theme.settings[2].settings = new IRawThemeSettingStyle();
+        theme.settings[2].settings.foreground = "#0000ff";
+        registry.setTheme(theme);
+        IGrammar grammar = loadGrammar(registry, "{ \"scopeName\": \"source.t\", \"patterns\": ["
+            + "{ \"begin\": \"\\\\((\\\\w*)\", \"end\": \"\\\\)\", \"name\": \"meta.group.$1\","
+            + " \"patterns\": [ { \"include\": \"$self\" } ] },"
+            + "{ \"match\": \"<(\\\\w+)>\", \"name\": \"entity.name.tag.$1\" } ] }");
+        ScopeTable table = ((Grammar) grammar).getScopeTable();
+        String[] colorMap = registry.getColorMap();
+
+        StringBuilder tags = new StringBuilder();
+        for (int i = 0; i < ScopeTable.MAX_DYNAMIC_SCOPES + 100; i++) {
+            tags.append("<t").append(i).append('>');
+        }
+        grammar.tokenizeLine("(a <a>)", null);
+        int size = table.size();
+        int[] tokens = grammar.tokenizeLine2(tags.toString(), null).tokens;
+        // the names built from captures stop getting ids
+        assertTrue(table.size() < size + ScopeTable.MAX_DYNAMIC_SCOPES);
+        size = table.size();
+        assertEquals(2, tokens.length);
+        assertEquals("#FF0000", colorMap[StackElementMetadata.getForeground(tokens[1])]);
+
+        IToken[] line = grammar.tokenizeLine("(g <u>)", null).tokens;
+        assertEquals("meta.group.g", line[2].scopes[1]);
+        assertEquals("entity.name.tag.u", line[2].scopes[2]);
+        assertEquals(size, table.size());
+        // the scopes without an id still match the selectors
+        tokens = grammar.tokenizeLine2("(g <u>)", null).tokens;
+        assertEquals(3, tokens[2]);
+        assertEquals("#0000FF", colorMap[StackElementMetadata.getForeground(tokens[3])]);
+    }
+
+    public void testParentScopesTheme() throws Exception
+    {
+        Registry registry = new Registry();
+        IRawTheme theme = new IRawTheme();
+        theme.settings = new IRawThemeSetting[] { new IRawThemeSetting(), new IRawThemeSetting(), new IRawThemeSetting(),
+            new IRawThemeSetting() };
+        theme.settings[0].settings = new IRawThemeSettingStyle();
+        theme.settings[0].settings.foreground = "#000000";
+        theme.settings[1].scope = new String[] { "string" };
+        theme.settings[1].settings = new IRawThemeSettingStyle();
+        theme.settings[1].settings.foreground = "#00ff00";
+        theme.settings[2].scope = new String[] { "meta.group string", "source.t meta.group string.quoted.x" };
+        theme.settings[2].settings = new IRawThemeSettingStyle();
+        theme.settings[2].settings.foreground = "#ff0000";
+        theme.settings[3].scope = new String[] { "source.t meta.group meta.group string" };
+        theme.settings[3].settings = new IRawThemeSettingStyle();
+        theme.settings[3].settings.foreground = "#0000ff";
+        registry.setTheme(theme);
+
+        IGrammar grammar = loadGrammar(registry, "{ \"scopeName\": \"source.t\", \"patterns\": ["
+            + "{ \"begin\": \"\\\\(\", \"end\": \"\\\\)\", \"name\": \"meta.group\", \"patterns\": [ { \"include\": \"$self\" } ] },"
+            + "{ \"match\": \"'[^']*'\", \"name\": \"string.quoted\" } ] }");
+
+        int[] tokens = grammar.tokenizeLine2("'a' (('b'))", null).tokens;
+        String[] colorMap = registry.getColorMap();
+        assertEquals(8, tokens.length);
+        assertEquals(0, tokens[0]);
+        assertEquals("#00FF00", colorMap[StackElementMetadata.getForeground(tokens[1])]);
+        assertEquals(3, tokens[2]);
+        assertEquals("#000000", colorMap[StackElementMetadata.getForeground(tokens[3])]);
+        assertEquals(6, tokens[4]);
+        // the selector with more parent scopes wins
+        assertEquals("#0000FF", colorMap[StackElementMetadata.getForeground(tokens[5])]);
+
+        tokens = grammar.tokenizeLine2("('c')", null).tokens;
+        assertEquals(1, tokens[2]);
+        assertEquals("#FF0000", colorMap[StackElementMetadata.getForeground(tokens[3])]);
+    }
+
+    public void testThemeMatch() throws Exception
+    {
+        IRawTheme rawTheme = new IRawTheme();
+        String[][] scopes = { { "string" }, { "string.quoted" }, { "meta.tag string.quoted" }, { "keyword.control" },
+            { "keyword.other.unit" } };
+        rawTheme.settings = new IRawThemeSetting[scopes.length];
+        for (int i = 0; i < scopes.length; i++) {
+            rawTheme.settings[i] = new IRawThemeSetting();
+            rawTheme.settings[i].scope = scopes[i];
+            rawTheme.settings[i].settings = new IRawThemeSettingStyle();
+            rawTheme.settings[i].settings.foreground = "#a0000" + i;
+        }
+        Theme theme = Theme.createFromRawTheme(rawTheme);
+        String[] colorMap = theme.getColorMap();
+
+        ThemeTrieElementRule[] rules = theme.match("string.quoted.double.js");
+        assertSame(rules, theme.match("string.quoted"));
+        assertEquals(2, rules.length);
+        // the rule with parent scopes is more specific
+        assertTrue(Arrays.equals(new String[] { "meta.tag" }, rules[0].parentScopes));
+        assertEquals("#A00002", colorMap[rules[0].foreground]);
+        assertEquals("#A00001", colorMap[rules[1].foreground]);
+        assertEquals("#A00000", colorMap[theme.match("string.unquoted")[0].foreground]);
+        assertEquals("#A00000", colorMap[theme.match("string.")[0].foreground]);
+        assertEquals("#A00003", colorMap[theme.match("keyword.control.js")[0].foreground]);
+        assertEquals("#A00004", colorMap[theme.match("keyword.other.unit.px")[0].foreground]);
+        assertEquals(0, theme.match("keyword.other")[0].foreground);
+        assertEquals(0, theme.match("comment")[0].foreground);
+        assertEquals(0, theme.match("")[0].foreground);
+    }
+
+    public void testTokenizedDocument() throws Exception
+    {
+        Registry registry = new Registry();
+        IGrammar grammar = registry.loadGrammarFromPathSync("test-cases/JavaScript.tmLanguage.json");
+        TokenizedDocument document = new TokenizedDocument(grammar,
+            "var a = 1;\nvar b = 2;\n/* a\nb */\nfunction f() {\n  return a + b;\n}\n");
+
+        // an edit inside a line only retokenizes that line
+        ILinesChangedResult changed = document.applyEdit(1, 8, 1, 9, "42");
+        assertEquals(1, changed.startLine);
+        assertEquals(2, changed.endLine);
+        assertEquals(0, changed.lineCountDelta);
+        assertEquals("var b = 42;", document.getLine(1));
+
+        // turning a block comment into a line comment retokenizes until the states converge
+        changed = document.applyEdit(2, 0, 2, 2, "//");
+        assertEquals(2, changed.startLine);
+        assertEquals(4, changed.endLine);
+        assertEquals(0, changed.lineCountDelta);
+
+        // opening a comment retokenizes to the end of the document
+        changed = document.applyEdit(4, 0, 4, 0, "/*\n");
+        assertEquals(4, changed.startLine);
+        assertEquals(document.getLineCount(), changed.endLine);
+        assertEquals(1, changed.lineCountDelta);
+
+        ITokenizeDocumentResult expected = grammar.tokenizeDocument(document.getText());
+        assertEquals(expected.lineCount, document.getLineCount());
+        for (int i = 0; i < expected.lineCount; i++) {
+            assertTrue(Arrays.equals(expected.getLineTokens(i), document.getLineTokens(i)));
+        }
+    }
+
+    public void testTokenizedDocumentMultiLineEdits() throws Exception
+    {
+        Registry registry = new Registry();
+        IGrammar grammar = registry.loadGrammarFromPathSync("test-cases/JavaScript.tmLanguage.json");
+
+        // deleting lines out of a block comment retokenizes the line after the edit
+        TokenizedDocument document = new TokenizedDocument(grammar, "x\ny\n/* z\nw */ q");
+        ILinesChangedResult changed = document.applyEdit(1, 1, 2, 4, "");
+        assertEquals(1, changed.startLine);
+        assertEquals(3, changed.endLine);
+        assertEquals(-1, changed.lineCountDelta);
+        assertTokenizedDocument(grammar, document);
+
+        // inserting lines that close a block comment retokenizes until the states converge
+        document = new TokenizedDocument(grammar, "a\n/* b\nc */\nd\ne");
+        changed = document.applyEdit(1, 0, 1, 2, "//\n//");
+        assertEquals(1, changed.startLine);
+        assertEquals(4, changed.endLine);
+        assertEquals(1, changed.lineCountDelta);
+        assertTokenizedDocument(grammar, document);
+
+        // inserting lines that change no state stops after them
+        document = new TokenizedDocument(grammar, "var a;\nvar b;\nvar c;\nvar d;");
+        changed = document.applyEdit(0, 6, 0, 6, "\nvar x;\nvar y;");
+        assertEquals(0, changed.startLine);
+        assertEquals(3, changed.endLine);
+        assertEquals(2, changed.lineCountDelta);
+        assertTokenizedDocument(grammar, document);
+    }
+
+    private static void assertTokenizedDocument(IGrammar grammar, TokenizedDocument document)
+    {
+        ITokenizeDocumentResult expected = grammar.tokenizeDocument(document.getText());
+        assertEquals(expected.lineCount, document.getLineCount());
+        for (int i = 0; i < expected.lineCount; i++) {
+            assertTrue("line " + i, Arrays.equals(expected.getLineTokens(i), document.getLineTokens(i)));
+        }
+    }
+
+    public void testTokenizedDocumentInvalidEdits() throws Exception
+    {
+        Registry registry = new Registry();
+        IGrammar grammar = registry.loadGrammarFromPathSync("test-cases/JavaScript.tmLanguage.json");
+        String text = "var a = 1;\n/* a\nb */\n";
+        TokenizedDocument document = new TokenizedDocument(grammar, text);
+        int[][] ranges = new int[][] {
+            { -1, 0, 0, 0 }, { 0, 0, 4, 0 }, { 1, 0, 0, 0 },
+            { 0, -1, 0, 0 }, { 0, 11, 0, 11 }, { 0, 0, 1, -1 }, { 0, 0, 1, 5 },
+            { 0, 4, 0, 3 }
+        };
+        for (int[] range : ranges) {
+            try {
+                document.applyEdit(range[0], range[1], range[2], range[3], "x\ny");
+                fail(Arrays.toString(range));
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            assertEquals(text, document.getText());
+            assertEquals(4, document.getLineCount());
+        }
+
+        // the ends of the lines are valid columns
+        document.applyEdit(0, 10, 1, 4, "");
+        assertEquals("var a = 1;\nb */\n", document.getText());
+    }
+
+    public void testCombinedScanner() throws Exception
+    {
+        String[] regexps = new String[] {
+            "\\b(if|else)\\b", "(['\"])(.*?)\\1", "(?x) [a-z]+ # identifier", "\\G\\s*(=)", "[a-z]+", "(?i)\\bIF\\b", "\\d+", "\u00fc"
+        };
+        OnigScanner separate = new OnigScanner(regexps);
+        OnigScanner combined = new OnigScanner(regexps, true);
+        OnigString line = new OnigString("if x = 'a' else IF \"\u00fc\" 42 \u00fcber");
+        for (int pos = 0; pos <= line.getString().length(); pos++) {
+            IOnigNextMatchResult expected = separate._findNextMatchSync(line, pos);
+            IOnigNextMatchResult actual = combined._findNextMatchSync(line, pos);
+            if (expected == null) {
+                assertNull(actual);
+                continue;
+            }
+            assertEquals("index at " + pos, expected.getIndex(), actual.getIndex());
+            assertEquals("captures at " + pos, Arrays.toString(expected.getCaptureIndices()),
+                Arrays.toString(actual.getCaptureIndices()));
+        }
+    }
+
+    public void testCombinedScannersOption() throws Exception
+    {
+        RegistryOptions options = new RegistryOptionsNull();
+        options.combinedScanners = true;
+        IGrammar combined = new Registry(options).loadGrammarFromPathSync("test-cases/JavaScript.tmLanguage.json");
+        IGrammar separate = new Registry().loadGrammarFromPathSync("test-cases/JavaScript.tmLanguage.json");
+        List<String> lines = Files.readAllLines(Paths.get("test-cases/sample.js"));
+        List<IToken[]> expected = tokenizeLines(separate, lines);
+        List<IToken[]> actual = tokenizeLines(combined, lines);
+        for (int i = 0; i < lines.size(); i++) {
+            assertEquals("line " + i, expected.get(i).length, actual.get(i).length);
+            for (int j = 0; j < expected.get(i).length; j++) {
+                assertEquals(expected.get(i)[j].endIndex, actual.get(i)[j].endIndex);
+                assertTrue(Arrays.equals(expected.get(i)[j].scopes, actual.get(i)[j].scopes));
+            }
+        }
+
+        Grammar grammar = (Grammar) combined;
+        assertTrue(grammar.getRule(1).compile(grammar, null, true, true).scanner.isCombined());
+    }
+
+    public void testPrefilter() throws Exception
+    {
+        OnigString line = new OnigString("  return functions.map(x => x);");
+        assertEquals(9, OnigPrefilter.create("\\b(function)\\b").find(line, 0));
+        assertEquals(-1, OnigPrefilter.create("\\b(function)\\b").find(line, 10));
+        assertEquals(18, OnigPrefilter.create("(?=\\.)(\\.)\\s*(\\w+)").find(line, 0));
+        assertEquals(2, OnigPrefilter.create("(?x) (?: return | yield ) \\b # keyword").find(line, 0));
+        assertEquals(25, OnigPrefilter.create("[=-]>|\\+\\+").find(line, 0));
+
+        // may match the empty string, or not understood
+        assertNull(OnigPrefilter.create("\\s*(?=\\()"));
+        assertNull(OnigPrefilter.create("(?=a)|b"));
+        assertNull(OnigPrefilter.create("(?(1)a|b)"));
+        assertNull(OnigPrefilter.create("[^a]b"));
+    }
+
+    public void testPrefilterGivesUp() throws Exception
+    {
+        String[] unsupported = new String[] {
+            // case folding
+            "(?i)ss", "(?i:k)", "a(?i)b", "(?x-i:a)(?i)b",
+            // anchored at the search position
+            "\\Gabc", "\\Aabc",
+            // back references
+            "(a)\\1", "(?<n>a)\\k<n>",
+            // look-behinds
+            "(?<=x)abc", "(?<!x)abc",
+            // empty branches
+            "a|", "|a", "(|a)b", "(a|)b", "(a||b)c"
+        };
+        for (String source : unsupported) {
+            assertNull(source, OnigPrefilter.create(source));
+        }
+
+        // turning case folding off, look-aheads and `\b` keep the prefilter
+        String[] supported = new String[] { "(?-i)ab", "a(?=b)", "\\bx+", "(?:a|bc)d", "x(?!y)" };
+        OnigString line = new OnigString("ab abc xxy ad bcd");
+        for (String source : supported) {
+            OnigPrefilter prefilter = OnigPrefilter.create(source);
+            assertNotNull(source, prefilter);
+            OnigScanner scanner = new OnigScanner(new String[] { source });
+            for (int pos = 0; pos <= line.getString().length(); pos++) {
+                IOnigNextMatchResult match = scanner._findNextMatchSync(line, pos);
+                int found = prefilter.find(line, pos);
+                if (match == null) {
+                    continue;
+                }
+                // never beyond the real match
+                assertTrue(source + " at " + pos, found != -1 && found <= match.getCaptureIndices()[0].getStart());
+            }
+        }
+    }
+
+    public void testRegexCache() throws Exception
+    {
+        RegexCache.clear();
+        OnigRegExp a = new OnigRegExp("\\b(regex|cache)\\b");
+        OnigRegExp b = new OnigRegExp("\\b(regex|cache)\\b");
+        assertEquals(1, RegexCache.getMisses());
+        assertEquals(1, RegexCache.getHits());
+        assertEquals(1, RegexCache.size());
+        assertEquals(6, b.Search(new OnigString("a new regex"), 0).LocationAt(0));
+        assertEquals(6, a.Search(new OnigString("a new cache"), 0).LocationAt(0));
+
+        // the cache is shared by the whole process, restore it for the next tests
+        int maxSize = RegexCache.getMaxSize();
+        try {
+            RegexCache.setMaxSize(0);
+            new OnigRegExp("\\b(regex|cache)\\b");
+            assertEquals(0, RegexCache.size());
+        } finally {
+            RegexCache.setMaxSize(maxSize);
+        }
+        assertEquals(maxSize, RegexCache.getMaxSize());
+    }
+
     /**
      * Rigourous Test :-)
      */
@@ -0,0 +1,23 @@
+import testing;
+import { a, b as c } from "./module";
+function yes([a, b]) {
+   return a+b+1e100;
+}
+const y = <div>
+   <span />
+   <img onclick={x=>x+1} src={`${x}`} />
+</div>
+const reg = /test/ig;
+reg.exec("nihao")
+class testclass extends Base { constructor() { super(); this.x = 0x1F; } }
+/* block
+   comment */
+// line comment
+var s = 'single' + "double" + `tmpl ${a + `${b}`} end`;
+async function* gen() { yield await foo?.bar ?? 3; }
+let obj = { key: value, 'q': [1, 2, 3], get x() { return 1; } };
+if (a === b && c !== d || !e) { throw new Error("boom"); }
+for (let i = 0; i < 10; i++) { console.log(i); }
+switch (x) { case 1: break; default: continue; }
+label: while (true) { do { } while (false); }
+export default class extends React.Component { render() { return <A b="c" {...d}/>; } }